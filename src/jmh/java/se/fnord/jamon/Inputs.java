@@ -0,0 +1,151 @@
+package se.fnord.jamon;
+
+import java.util.Random;
+
+/**
+ * Generates deterministic inputs of (roughly) a requested size for the benchmark grammars.
+ */
+final class Inputs {
+	private Inputs() {
+		throw new IllegalAccessError("No Inputs for you!");
+	}
+
+	private static final String[] WORDS = { "alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta" };
+
+	public static String jsonString(int size, long seed) {
+		final Random random = new Random(seed);
+		final StringBuilder sb = new StringBuilder(size + 16);
+		sb.append('"');
+		while (sb.length() < size) {
+			switch (random.nextInt(8)) {
+			case 0:
+				sb.append("\\n");
+				break;
+			case 1:
+				sb.append("\\t");
+				break;
+			case 2:
+				sb.append("\\\"");
+				break;
+			default:
+				sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static void jsonValue(StringBuilder sb, Random random, int depth) {
+		final int kind = depth > 3 ? random.nextInt(4) : random.nextInt(6);
+		switch (kind) {
+		case 0:
+			sb.append(jsonString(8 + random.nextInt(24), random.nextLong()));
+			break;
+		case 1:
+			sb.append(random.nextInt(2000) - 1000).append('.').append(random.nextInt(100)).append("e+").append(random.nextInt(10));
+			break;
+		case 2:
+			sb.append(random.nextBoolean());
+			break;
+		case 3:
+			sb.append("null");
+			break;
+		case 4:
+			sb.append("[ ");
+			for (int i = random.nextInt(5); i >= 0; i--) {
+				jsonValue(sb, random, depth + 1);
+				if (i > 0)
+					sb.append(", ");
+			}
+			sb.append(" ]");
+			break;
+		default:
+			sb.append("{\n");
+			for (int i = random.nextInt(5); i >= 0; i--) {
+				sb.append("  \"").append(WORDS[random.nextInt(WORDS.length)]).append(i).append("\": ");
+				jsonValue(sb, random, depth + 1);
+				if (i > 0)
+					sb.append(",\n");
+			}
+			sb.append("\n}");
+		}
+	}
+
+	public static String json(int size, long seed) {
+		final Random random = new Random(seed);
+		final StringBuilder sb = new StringBuilder(size + 256);
+		sb.append("[\n");
+		jsonValue(sb, random, 0);
+		while (sb.length() < size) {
+			sb.append(",\n");
+			jsonValue(sb, random, 0);
+		}
+		return sb.append("\n]").toString();
+	}
+
+	private static void arithmetic(StringBuilder sb, Random random, int depth) {
+		switch (depth > 2 ? random.nextInt(2) : random.nextInt(4)) {
+		case 0:
+			sb.append(random.nextInt(1000));
+			break;
+		case 1:
+			sb.append("-").append(random.nextInt(100));
+			break;
+		case 2:
+			sb.append('(');
+			arithmetic(sb, random, depth + 1);
+			sb.append(" + ");
+			arithmetic(sb, random, depth + 1);
+			sb.append(')');
+			break;
+		default:
+			arithmetic(sb, random, depth + 1);
+			sb.append(random.nextBoolean() ? " * " : " / ");
+			arithmetic(sb, random, depth + 1);
+		}
+	}
+
+	public static String arithmetic(int size, long seed) {
+		final Random random = new Random(seed);
+		final StringBuilder sb = new StringBuilder(size + 64);
+		arithmetic(sb, random, 0);
+		while (sb.length() < size) {
+			sb.append(random.nextBoolean() ? " + " : " - ");
+			arithmetic(sb, random, 0);
+		}
+		return sb.toString();
+	}
+
+	private static void miniExp(StringBuilder sb, Random random) {
+		final String word = WORDS[random.nextInt(WORDS.length)];
+		switch (random.nextInt(6)) {
+		case 0:
+			sb.append(word).append('.').append(word).append('[').append(random.nextInt(10)).append("] + ").append(random.nextInt(100));
+			break;
+		case 1:
+			sb.append(word).append("(x, \"").append(word).append("\") == ").append(random.nextInt(100));
+			break;
+		case 2:
+			sb.append("(").append(word).append(" - ").append(random.nextInt(100)).append(") * -").append(word);
+			break;
+		case 3:
+			sb.append(word).append(" != null and ").append(word).append(" < '").append(word).append('\'');
+			break;
+		case 4:
+			sb.append("true");
+			break;
+		default:
+			sb.append(word).append(" / ").append(random.nextInt(100) + 1).append(" > ").append(random.nextInt(10));
+		}
+	}
+
+	public static String miniExp(int size, long seed) {
+		final Random random = new Random(seed);
+		final StringBuilder sb = new StringBuilder(size + 64);
+		miniExp(sb, random);
+		while (sb.length() < size) {
+			sb.append(random.nextBoolean() ? " or " : " and ");
+			miniExp(sb, random);
+		}
+		return sb.toString();
+	}
+}
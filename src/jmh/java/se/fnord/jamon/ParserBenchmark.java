@@ -0,0 +1,134 @@
+package se.fnord.jamon;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.fnord.jamon.internal.Contexts;
+
+/**
+ * Throughput of the test grammars over generated inputs.
+ * <p>
+ * Run with the gc profiler (the default for <code>gradle jmh</code>) to get
+ * allocation rates. The <code>memo</code> benchmark additionally reports the
+ * number of memoized (position, consumer) entries left after its parses,
+ * summed over each iteration; divide by the operations of the iteration for
+ * the entries per parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+	public enum Grammar {
+		JSON_STRING {
+			@Override
+			Consumer parser() {
+				return se.fnord.jamon.JSON.stringParser();
+			}
+
+			@Override
+			String input(int size) {
+				return Inputs.jsonString(size, SEED);
+			}
+		},
+		JSON {
+			@Override
+			Consumer parser() {
+				return se.fnord.jamon.JSON.createParser();
+			}
+
+			@Override
+			String input(int size) {
+				return Inputs.json(size, SEED);
+			}
+		},
+		CALCULATOR {
+			@Override
+			Consumer parser() {
+				return Calculator.createParser();
+			}
+
+			@Override
+			String input(int size) {
+				return Inputs.arithmetic(size, SEED);
+			}
+		},
+		MINIEXP {
+			@Override
+			Consumer parser() {
+				return TestMiniExpParser.expression();
+			}
+
+			@Override
+			String input(int size) {
+				return Inputs.miniExp(size, SEED);
+			}
+		};
+
+		private static final long SEED = 0x6a616d6f6eL;
+
+		abstract Consumer parser();
+		abstract String input(int size);
+	}
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class MemoCounters {
+		public long memoEntries;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			memoEntries = 0;
+		}
+	}
+
+	@Param({ "JSON_STRING", "JSON", "CALCULATOR", "MINIEXP" })
+	public Grammar grammar;
+
+	/** Approximate input size in characters: small, medium and multi-megabyte. */
+	@Param({ "128", "16384", "2097152" })
+	public int size;
+
+	@Param({ "AUTO", "ALL" })
+	public Memoization memoization;
+
+	private Consumer parser;
+	private String input;
+
+	@Setup(Level.Trial)
+	public void setup() throws ParseException, FatalParseException {
+		parser = grammar.parser();
+		input = grammar.input(size);
+		// Fail early rather than measuring error handling
+		Parsers.parse(parser, input, memoization);
+	}
+
+	@Benchmark
+	public Node parse() throws ParseException, FatalParseException {
+		return Parsers.parse(parser, input, memoization);
+	}
+
+	@Benchmark
+	public Node memo(MemoCounters counters) throws ParseException, FatalParseException {
+		final Contexts contexts = new Contexts(MemoizationPolicy.create(parser, memoization));
+		final Node root = new Node(null);
+		parser.consume(contexts.parseContext(input), root);
+		counters.memoEntries += contexts.parseCacheSize();
+		return root;
+	}
+}
@@ -1,14 +1,99 @@
 package se.fnord.jamon;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
 
 public class CharacterMatchers {
+	private static final char ASCII = 128;
+
 	private CharacterMatchers() {
 		throw new IllegalAccessError("No CharacterMatchers for you!");
 	}
 
+	private static final class CompiledMatcher implements CharacterMatcher {
+		private final CharacterMatcher matcher;
+		// ASCII characters 0-63 and 64-127
+		private final long low;
+		private final long high;
+		// Start and end (exclusive) of the matching ranges above ASCII, built
+		// on first use
+		private volatile char[] ranges;
+
+		private CompiledMatcher(CharacterMatcher matcher) {
+			this.matcher = matcher;
+			long low = 0L;
+			long high = 0L;
+			for (char ch = 0; ch < 64; ch++) {
+				if (matcher.match(ch))
+					low |= 1L << ch;
+				if (matcher.match((char) (ch + 64)))
+					high |= 1L << ch;
+			}
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		public boolean match(char ch) {
+			if (ch < ASCII)
+				return ((ch < 64 ? low : high) & (1L << ch)) != 0;
+			return matchOther(ch);
+		}
+
+		private boolean matchOther(char ch) {
+			char[] ranges = this.ranges;
+			if (ranges == null)
+				this.ranges = ranges = ranges(matcher);
+			// The number of range bounds at or below ch is odd inside a range
+			int lo = 0;
+			int hi = ranges.length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (ranges[mid] <= ch)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return (lo & 1) != 0;
+		}
+
+		private static char[] ranges(CharacterMatcher matcher) {
+			char[] ranges = new char[16];
+			int n = 0;
+			boolean inside = false;
+			for (int ch = ASCII; ch <= Character.MAX_VALUE; ch++) {
+				if (matcher.match((char) ch) != inside) {
+					if (n == ranges.length)
+						ranges = Arrays.copyOf(ranges, n << 1);
+					ranges[n++] = (char) ch;
+					inside = !inside;
+				}
+			}
+			// A range running to the last character has no end
+			return Arrays.copyOf(ranges, n);
+		}
+
+		@Override
+		public String toString() {
+			return matcher.toString();
+		}
+	}
+
+	/**
+	 * Compiles a matcher into a lookup table: a bitmap of the ASCII range and
+	 * a list of the ranges it matches above it, which is built the first time
+	 * a character above ASCII is matched. Compiling flattens any tree of
+	 * {@link #not(CharacterMatcher)}, {@link #and(CharacterMatcher...)},
+	 * {@link #or(CharacterMatcher...)} and the like into a single lookup.
+	 * <p>
+	 * The matcher must always give the same answer for the same character.
+	 * Matchers are compiled by {@link Parsers#matches(int, int, CharacterMatcher)}.
+	 */
+	public static CharacterMatcher compile(CharacterMatcher matcher) {
+		if (matcher instanceof CompiledMatcher)
+			return matcher;
+		return new CompiledMatcher(matcher);
+	}
+
 	public static CharacterMatcher not(final CharacterMatcher matcher) {
 		return new CharacterMatcher() {
 			@Override
@@ -61,6 +146,27 @@ public class CharacterMatchers {
 		};
 	}
 
+	/**
+	 * Restricts a matcher to the ASCII range. In byte mode (see
+	 * {@link Parsers#parse(Consumer, java.nio.ByteBuffer, java.nio.charset.Charset)})
+	 * every byte of a multi-byte character is seen as a character in
+	 * 0x80-0xff, which matchers like {@link #letter()} or {@link #control()}
+	 * would otherwise accept or reject arbitrarily.
+	 */
+	public static CharacterMatcher ascii(final CharacterMatcher matcher) {
+		return new CharacterMatcher() {
+			@Override
+			public boolean match(char ch) {
+				return ch < 0x80 && matcher.match(ch);
+			}
+
+			@Override
+			public String toString() {
+				return "ascii(" + matcher + ")";
+			}
+		};
+	}
+
 	public static CharacterMatcher newline() {
 		return match('\r', '\n');
 	}
@@ -192,18 +298,25 @@ public class CharacterMatchers {
 	}
 
 	public static CharacterMatcher match(char ...chars) {
-		final Set<Character> characters = new HashSet<Character>(chars.length);
-		for (char ch : chars)
-			characters.add(ch);
+		final char[] sorted = chars.clone();
+		Arrays.sort(sorted);
 		return new CharacterMatcher() {
 			@Override
             public boolean match(char ch) {
-	            return characters.contains(ch);
+	            return Arrays.binarySearch(sorted, ch) >= 0;
             }
 
 			@Override
 			public String toString() {
-				return "match[" + characters + "]";
+				final StringBuilder sb = new StringBuilder("match[[");
+				for (int i = 0; i < sorted.length; i++) {
+					if (i > 0 && sorted[i] == sorted[i - 1])
+						continue;
+					if (i > 0)
+						sb.append(", ");
+					sb.append(sorted[i]);
+				}
+				return sb.append("]]").toString();
 			}
 		};
 	}
@@ -0,0 +1,66 @@
+package se.fnord.jamon;
+
+/**
+ * Structural view of the built-in consumers, see {@link Parsers#accept(Consumer, ConsumerVisitor)}.
+ */
+interface ConsumerVisitor<R> {
+	R sequence(Consumer self, Consumer[] parsers);
+
+	R alternative(Consumer self, Consumer[] parsers);
+
+	R repeat(Consumer self, Consumer parser, int min, int max);
+
+	/**
+	 * Consumers that run parser at their own position and succeed or fail with it
+	 * (lift, join, replace and group).
+	 */
+	R wrap(Consumer self, Consumer parser);
+
+	/**
+	 * Consumers that run parser without keeping its nodes (skip and ignore).
+	 */
+	R ignore(Consumer self, Consumer parser);
+
+	R require(Consumer self, Consumer parser);
+
+	R preserve(Consumer self, Consumer parser);
+
+	R memoization(Consumer self, Consumer parser, boolean memoize);
+
+	R subparse(Consumer self, Consumer scanner, Consumer parser);
+
+	/**
+	 * @param target The referenced consumer, or null if not yet set
+	 */
+	R reference(Consumer self, Consumer target);
+
+	R exact(Consumer self, String token);
+
+	R exactIgnoreCase(Consumer self, String token);
+
+	R matches(Consumer self, int min, int max, CharacterMatcher matcher);
+
+	/**
+	 * @param tokens Exact consumers of the alternatives, in order. They are
+	 *            not invoked, but stand in for the alternatives in failure
+	 *            reports.
+	 */
+	R oneOf(Consumer self, Consumer[] tokens);
+
+	/**
+	 * @param prefix The operators that precede an operand
+	 * @param suffix The operators that follow an operand (infix and postfix)
+	 */
+	R operators(Consumer self, Consumer operand, Consumer[] prefix, Consumer[] suffix);
+
+	R endOfInput(Consumer self);
+
+	R cut(Consumer self);
+
+	R commit(Consumer self);
+
+	/**
+	 * Consumers not provided by {@link Parsers}.
+	 */
+	R opaque(Consumer self);
+}
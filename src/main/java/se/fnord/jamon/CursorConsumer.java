@@ -0,0 +1,23 @@
+package se.fnord.jamon;
+
+import se.fnord.jamon.internal.Cursor;
+
+/**
+ * A consumer that runs on a {@link Cursor}, threading the position as an int
+ * instead of splicing a new {@link ParseContext} per step.
+ * <p>
+ * Mismatches are returned as {@link #FAIL} rather than thrown, so that
+ * backtracking costs no more than a compare. They only become a
+ * {@link ParseException} where a consumer is run on a {@link ParseContext}.
+ */
+interface CursorConsumer extends Consumer {
+	/**
+	 * Returned instead of a position when a consumer does not match.
+	 */
+	int FAIL = -1;
+
+	/**
+	 * @return The position after the consumed input, or {@link #FAIL}
+	 */
+	int consume(Cursor cursor, int position, Node parent) throws FatalParseException;
+}
@@ -0,0 +1,104 @@
+package se.fnord.jamon;
+
+/**
+ * A {@link ConsumerVisitor} that handles every consumer with {@link #otherwise(Consumer)}
+ * unless overridden.
+ */
+abstract class DefaultConsumerVisitor<R> implements ConsumerVisitor<R> {
+	protected abstract R otherwise(Consumer self);
+
+	@Override
+	public R sequence(Consumer self, Consumer[] parsers) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R alternative(Consumer self, Consumer[] parsers) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R repeat(Consumer self, Consumer parser, int min, int max) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R wrap(Consumer self, Consumer parser) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R ignore(Consumer self, Consumer parser) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R require(Consumer self, Consumer parser) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R preserve(Consumer self, Consumer parser) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R memoization(Consumer self, Consumer parser, boolean memoize) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R subparse(Consumer self, Consumer scanner, Consumer parser) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R reference(Consumer self, Consumer target) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R exact(Consumer self, String token) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R matches(Consumer self, int min, int max, CharacterMatcher matcher) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R exactIgnoreCase(Consumer self, String token) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R oneOf(Consumer self, Consumer[] tokens) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R operators(Consumer self, Consumer operand, Consumer[] prefix, Consumer[] suffix) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R endOfInput(Consumer self) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R cut(Consumer self) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R commit(Consumer self) {
+		return otherwise(self);
+	}
+
+	@Override
+	public R opaque(Consumer self) {
+		return otherwise(self);
+	}
+}
@@ -0,0 +1,335 @@
+package se.fnord.jamon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.fnord.jamon.internal.Cursor;
+
+/**
+ * The characters a consumer may start a match with, and the terminals (exact,
+ * matches and end of input) that may start it.
+ * <p>
+ * This is only a necessary condition, a consumer may still fail on a
+ * character in its set. Consumers that have effects even when they fail
+ * (require, cut and commit) and consumers not provided by {@link Parsers} may
+ * start with anything.
+ */
+final class FirstSet {
+	private static final int OTHER = 128;
+	private static final int END = 129;
+	private static final Consumer[] NO_TERMINALS = new Consumer[0];
+
+	private static final FirstSet ANY = new FirstSet(-1L, -1L, true, true, true, NO_TERMINALS);
+	private static final FirstSet EMPTY = new FirstSet(0L, 0L, false, true, true, NO_TERMINALS);
+	private static final FirstSet NONE = new FirstSet(0L, 0L, false, false, false, NO_TERMINALS);
+
+	/**
+	 * The branches of an alternative that may match, in order, for each ASCII
+	 * character, other characters and the end of input.
+	 */
+	static final class Dispatch {
+		private final int[][] table;
+		// The first terminals of the branches each row skips
+		private final Consumer[][] skipped;
+		private final GrammarVersion version;
+
+		private Dispatch(int[][] table, Consumer[][] skipped, GrammarVersion version) {
+			this.table = table;
+			this.skipped = skipped;
+			this.version = version;
+		}
+
+		/**
+		 * @return false if a reference the table was built with has been
+		 *         retargeted since
+		 */
+		boolean isCurrent() {
+			return version.isCurrent();
+		}
+
+		/**
+		 * @return The row of the dispatch table for position
+		 */
+		int row(Cursor cursor, int position) {
+			if (cursor.available(position, 1) < 1)
+				return END;
+			final char ch = cursor.charAt(position);
+			return ch < OTHER ? ch : OTHER;
+		}
+
+		/**
+		 * @return The indices of the branches of row
+		 */
+		int[] branches(int row) {
+			return table[row];
+		}
+
+		/**
+		 * Records the terminals of the branches skipped by row as expected at
+		 * position, as if they had been tried. They are recorded as an array,
+		 * to be expanded when reported.
+		 */
+		void expectSkipped(Cursor cursor, int position, int row) {
+			if (skipped[row].length > 0)
+				cursor.expected(position, skipped[row]);
+		}
+	}
+
+	// ASCII characters 0-63 and 64-127
+	private final long low;
+	private final long high;
+	// May start with a non-ASCII character
+	private final boolean other;
+	// May match whatever the next character is, eg. by consuming nothing
+	private final boolean all;
+	// May match at the end of input
+	private final boolean end;
+	private final Consumer[] terminals;
+
+	private FirstSet(long low, long high, boolean other, boolean all, boolean end, Consumer[] terminals) {
+		this.low = low;
+		this.high = high;
+		this.other = other;
+		this.all = all;
+		this.end = end;
+		this.terminals = terminals;
+	}
+
+	private static FirstSet of(Consumer terminal, char ch) {
+		final Consumer[] terminals = { terminal };
+		if (ch >= OTHER)
+			return new FirstSet(0L, 0L, true, false, false, terminals);
+		return ch < 64 ? new FirstSet(1L << ch, 0L, false, false, false, terminals) : new FirstSet(0L, 1L << ch, false, false, false, terminals);
+	}
+
+	private static FirstSet of(Consumer terminal, CharacterMatcher matcher) {
+		long low = 0L;
+		long high = 0L;
+		for (char ch = 0; ch < 64; ch++) {
+			if (matcher.match(ch))
+				low |= 1L << ch;
+			if (matcher.match((char) (ch + 64)))
+				high |= 1L << ch;
+		}
+		return new FirstSet(low, high, true, false, false, new Consumer[] { terminal });
+	}
+
+	private static Consumer[] terminals(Consumer[] a, Consumer[] b) {
+		if (a.length == 0)
+			return b;
+		final List<Consumer> result = new ArrayList<>(Arrays.asList(a));
+		for (final Consumer c : b)
+			if (!result.contains(c))
+				result.add(c);
+		return result.toArray(new Consumer[result.size()]);
+	}
+
+	private FirstSet union(FirstSet o) {
+		return new FirstSet(low | o.low, high | o.high, other || o.other, all || o.all, end || o.end, terminals(terminals, o.terminals));
+	}
+
+	/**
+	 * The set of this followed by o.
+	 */
+	private FirstSet then(FirstSet o) {
+		if (!all)
+			return this;
+		return new FirstSet(low | o.low, high | o.high, other || o.other, o.all, end && o.end, terminals(terminals, o.terminals));
+	}
+
+	/**
+	 * The set of this, or of matching nothing.
+	 */
+	private FirstSet optional() {
+		return new FirstSet(low, high, other, true, true, terminals);
+	}
+
+	private boolean accepts(int index) {
+		if (all)
+			return true;
+		switch (index) {
+		case OTHER:
+			return other;
+		case END:
+			return end;
+		default:
+			return ((index < 64 ? low : high) & (1L << index)) != 0;
+		}
+	}
+
+	static Dispatch dispatch(Consumer[] branches) {
+		final Map<Consumer, FirstSet> sets = new IdentityHashMap<>();
+		final FirstSet[] firsts = new FirstSet[branches.length];
+		final Consumer[][] terminals = new Consumer[branches.length][];
+		for (int i = 0; i < branches.length; i++) {
+			firsts[i] = of(branches[i], sets);
+			terminals[i] = firsts[i].terminals;
+		}
+		// The table depends on the references its sets were computed over
+		final GrammarVersion version = GrammarVersion.of(sets.keySet());
+
+		final List<int[]> distinct = new ArrayList<>();
+		final List<Consumer[]> distinctSkipped = new ArrayList<>();
+		final int[][] table = new int[END + 1][];
+		final Consumer[][] skipped = new Consumer[END + 1][];
+		final int[] viable = new int[branches.length];
+		for (int index = 0; index < table.length; index++) {
+			int n = 0;
+			Consumer[] skips = NO_TERMINALS;
+			for (int i = 0; i < firsts.length; i++) {
+				if (firsts[i].accepts(index))
+					viable[n++] = i;
+				else
+					skips = terminals(skips, terminals[i]);
+			}
+			final int[] row = Arrays.copyOf(viable, n);
+			for (int d = 0; d < distinct.size(); d++) {
+				if (Arrays.equals(distinct.get(d), row)) {
+					table[index] = distinct.get(d);
+					skipped[index] = distinctSkipped.get(d);
+					break;
+				}
+			}
+			if (table[index] == null) {
+				distinct.add(row);
+				distinctSkipped.add(skips);
+				table[index] = row;
+				skipped[index] = skips;
+			}
+		}
+		return new Dispatch(table, skipped, version);
+	}
+
+	/**
+	 * Consumers reached again while their set is computed (ie. left
+	 * recursion) may start with anything.
+	 */
+	private static FirstSet of(Consumer c, final Map<Consumer, FirstSet> sets) {
+		if (sets.containsKey(c)) {
+			final FirstSet set = sets.get(c);
+			return set != null ? set : ANY;
+		}
+		sets.put(c, null);
+		final FirstSet set = Parsers.accept(c, new ConsumerVisitor<FirstSet>() {
+			@Override
+			public FirstSet sequence(Consumer self, Consumer[] parsers) {
+				FirstSet set = EMPTY;
+				for (int i = 0; i < parsers.length && set.all; i++)
+					set = set.then(of(parsers[i], sets));
+				return set;
+			}
+
+			@Override
+			public FirstSet alternative(Consumer self, Consumer[] parsers) {
+				FirstSet set = NONE;
+				for (int i = 0; i < parsers.length; i++)
+					set = set.union(of(parsers[i], sets));
+				return set;
+			}
+
+			@Override
+			public FirstSet repeat(Consumer self, Consumer parser, int min, int max) {
+				final FirstSet set = of(parser, sets);
+				return min == 0 || max == 0 ? set.optional() : set;
+			}
+
+			@Override
+			public FirstSet wrap(Consumer self, Consumer parser) {
+				return of(parser, sets);
+			}
+
+			@Override
+			public FirstSet ignore(Consumer self, Consumer parser) {
+				return of(parser, sets);
+			}
+
+			@Override
+			public FirstSet require(Consumer self, Consumer parser) {
+				return ANY;
+			}
+
+			@Override
+			public FirstSet preserve(Consumer self, Consumer parser) {
+				return of(parser, sets);
+			}
+
+			@Override
+			public FirstSet memoization(Consumer self, Consumer parser, boolean memoize) {
+				return of(parser, sets);
+			}
+
+			@Override
+			public FirstSet subparse(Consumer self, Consumer scanner, Consumer parser) {
+				return of(scanner, sets);
+			}
+
+			@Override
+			public FirstSet reference(Consumer self, Consumer target) {
+				return target != null ? of(target, sets) : ANY;
+			}
+
+			@Override
+			public FirstSet exact(Consumer self, String token) {
+				return token.isEmpty() ? EMPTY : of(self, token.charAt(0));
+			}
+
+			@Override
+			public FirstSet exactIgnoreCase(Consumer self, final String token) {
+				final int first = token.codePointAt(0);
+				return of(self, new CharacterMatcher() {
+					@Override
+					public boolean match(char ch) {
+						return Character.toUpperCase((int) ch) == Character.toUpperCase(first) || Character.toLowerCase((int) ch) == Character.toLowerCase(first);
+					}
+				});
+			}
+
+			@Override
+			public FirstSet matches(Consumer self, int min, int max, CharacterMatcher matcher) {
+				final FirstSet set = of(self, matcher);
+				return min == 0 || max == 0 ? set.optional() : set;
+			}
+
+			@Override
+			public FirstSet oneOf(Consumer self, Consumer[] tokens) {
+				FirstSet set = NONE;
+				for (int i = 0; i < tokens.length; i++)
+					set = set.union(of(tokens[i], sets));
+				return set;
+			}
+
+			@Override
+			public FirstSet operators(Consumer self, Consumer operand, Consumer[] prefix, Consumer[] suffix) {
+				FirstSet set = of(operand, sets);
+				for (int i = 0; i < prefix.length; i++)
+					set = set.union(of(prefix[i], sets));
+				return set;
+			}
+
+			@Override
+			public FirstSet endOfInput(Consumer self) {
+				return new FirstSet(0L, 0L, false, false, true, new Consumer[] { self });
+			}
+
+			@Override
+			public FirstSet cut(Consumer self) {
+				return ANY;
+			}
+
+			@Override
+			public FirstSet commit(Consumer self) {
+				return ANY;
+			}
+
+			@Override
+			public FirstSet opaque(Consumer self) {
+				return ANY;
+			}
+		});
+		sets.put(c, set);
+		return set;
+	}
+}
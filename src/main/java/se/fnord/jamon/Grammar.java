@@ -0,0 +1,250 @@
+package se.fnord.jamon;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.fnord.jamon.internal.Contexts;
+import se.fnord.jamon.internal.InputException;
+
+/**
+ * A grammar prepared for parsing many inputs, see
+ * {@link Parsers#grammar(Consumer)}.
+ * <p>
+ * The memoization policy is decided once, and each thread keeps the state of
+ * its last parse (memo table and backtracking stacks) and reuses it for the
+ * next, so parsing a small input does no setup beyond creating its context.
+ * <p>
+ * A grammar is thread-safe, as long as its consumers are not changed (eg.
+ * references retargeted) after it is created. The consumers provided by
+ * {@link Parsers} keep no state of their own between parses.
+ */
+public final class Grammar {
+	// Records are parsed by a task of their own down to about this many characters
+	private static final int TASK_SIZE = 16384;
+
+	private final Consumer root;
+	private final Predicate<Consumer> memoize;
+	// Holds the contexts of the thread while no parse of the thread uses them
+	private final ThreadLocal<Contexts> idle = new ThreadLocal<>();
+
+	Grammar(Consumer root, Memoization memoization) {
+		this.root = root;
+		this.memoize = MemoizationPolicy.cached(root, memoization);
+	}
+
+	@Override
+	public String toString() {
+		return "grammar[" + root + "]";
+	}
+
+	/**
+	 * @return The contexts of the thread, or new ones if a parse of the thread
+	 *         (eg. one started by an attachment factory) is using them
+	 */
+	private Contexts acquire() {
+		final Contexts contexts = idle.get();
+		if (contexts == null)
+			return new Contexts(memoize);
+		idle.set(null);
+		return contexts;
+	}
+
+	private void release(Contexts contexts) {
+		// Cleared right away, so the memo table does not hold on to the nodes
+		contexts.reset();
+		idle.set(contexts);
+	}
+
+	/**
+	 * @see Parsers#parse(Consumer, CharSequence)
+	 */
+	public Node parse(CharSequence input) throws ParseException, FatalParseException {
+		final Contexts contexts = acquire();
+		try {
+			return Parsers.parse(root, contexts.parseContext(input));
+		}
+		finally {
+			release(contexts);
+		}
+	}
+
+	/**
+	 * @see Parsers#parse(Consumer, Reader)
+	 */
+	public Node parse(Reader input) throws ParseException, FatalParseException, IOException {
+		final Contexts contexts = acquire();
+		try {
+			return Parsers.parse(root, contexts.parseContext(input));
+		}
+		catch (InputException e) {
+			throw e.getCause();
+		}
+		finally {
+			release(contexts);
+		}
+	}
+
+	/**
+	 * @see Parsers#parse(Consumer, ByteBuffer, Charset)
+	 */
+	public Node parse(ByteBuffer input, Charset charset) throws ParseException, FatalParseException {
+		final Contexts contexts = acquire();
+		try {
+			return Parsers.parse(root, contexts.parseContext(input, charset));
+		}
+		finally {
+			release(contexts);
+		}
+	}
+
+	/**
+	 * Parses the records of input in parallel, on a pool shared by all
+	 * grammars.
+	 *
+	 * @see #parseRecords(CharSequence, CharacterMatcher, ForkJoinPool)
+	 */
+	public List<Node> parseRecords(CharSequence input, CharacterMatcher boundary) throws ParseException, FatalParseException {
+		return parseRecords(input, boundary, SharedPool.POOL);
+	}
+
+	/**
+	 * Parses the records of input, the runs of characters between boundary
+	 * characters (eg. lines), each as a whole input of its own. Runs of
+	 * boundary characters separate two records, so there are no empty
+	 * records.
+	 * <p>
+	 * The records are read in place and parsed in parallel on pool, so input
+	 * must not change during the parse. The positions of the nodes, and the
+	 * lines and columns of failures, are those of input.
+	 *
+	 * Once a record fails, the records after it are not parsed.
+	 *
+	 * @return The nodes of the records, in order
+	 * @throws ParseException
+	 *             The failure of the first record that could not be parsed
+	 */
+	public List<Node> parseRecords(CharSequence input, CharacterMatcher boundary, ForkJoinPool pool) throws ParseException, FatalParseException {
+		final Records records = new Records(input, split(input, CharacterMatchers.compile(boundary)));
+		pool.invoke(new RecordsTask(records, 0, records.nodes.length));
+		for (final Exception failure : records.failures) {
+			if (failure instanceof ParseException)
+				throw (ParseException) failure;
+			if (failure instanceof FatalParseException)
+				throw (FatalParseException) failure;
+		}
+		return Arrays.asList(records.nodes);
+	}
+
+	/**
+	 * @return The start and end of each record of input
+	 */
+	private static int[] split(CharSequence input, CharacterMatcher boundary) {
+		final List<Integer> bounds = new ArrayList<>();
+		final int length = input.length();
+		int start = -1;
+		for (int i = 0; i < length; i++) {
+			final boolean separator = boundary.match(input.charAt(i));
+			if (start < 0 && !separator) {
+				start = i;
+			}
+			else if (start >= 0 && separator) {
+				bounds.add(start);
+				bounds.add(i);
+				start = -1;
+			}
+		}
+		if (start >= 0) {
+			bounds.add(start);
+			bounds.add(length);
+		}
+		final int[] result = new int[bounds.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = bounds.get(i);
+		return result;
+	}
+
+	private Node parseRecord(CharSequence input, int start, int end) throws ParseException, FatalParseException {
+		final Contexts contexts = acquire();
+		try {
+			return Parsers.parse(root, contexts.parseContext(input, start, end));
+		}
+		finally {
+			release(contexts);
+		}
+	}
+
+	/**
+	 * The records of a call to parseRecords, and their results.
+	 */
+	private static final class Records {
+		final CharSequence input;
+		// The start and end of each record
+		final int[] bounds;
+		final Node[] nodes;
+		final Exception[] failures;
+		// The first record known to fail, records after it need not be parsed
+		final AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+
+		Records(CharSequence input, int[] bounds) {
+			this.input = input;
+			this.bounds = bounds;
+			this.nodes = new Node[bounds.length / 2];
+			this.failures = new Exception[nodes.length];
+		}
+
+		void failed(int record, Exception e) {
+			failures[record] = e;
+			for (int first = firstFailure.get(); record < first && !firstFailure.compareAndSet(first, record); first = firstFailure.get())
+				;
+		}
+	}
+
+	/**
+	 * Parses records from to to, splitting them in two tasks while they are
+	 * large. Failures are kept by record, so the first one can be reported
+	 * whichever task ends first.
+	 */
+	private final class RecordsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Records records;
+		private final int from;
+		private final int to;
+
+		RecordsTask(Records records, int from, int to) {
+			this.records = records;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			final int[] bounds = records.bounds;
+			if (to - from > 1 && bounds[2 * to - 1] - bounds[2 * from] > TASK_SIZE) {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new RecordsTask(records, from, middle), new RecordsTask(records, middle, to));
+				return;
+			}
+			for (int i = from; i < to && i < records.firstFailure.get(); i++) {
+				try {
+					records.nodes[i] = parseRecord(records.input, bounds[2 * i], bounds[2 * i + 1]);
+				}
+				catch (ParseException | FatalParseException e) {
+					records.failed(i, e);
+				}
+			}
+		}
+	}
+
+	private static final class SharedPool {
+		static final ForkJoinPool POOL = new ForkJoinPool();
+	}
+}
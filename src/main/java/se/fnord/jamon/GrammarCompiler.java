@@ -0,0 +1,399 @@
+package se.fnord.jamon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lowers a consumer graph into a {@link Program}.
+ * <p>
+ * Consumers are inlined, except references and consumers reached from more
+ * than one place, which become rules that are called. Every consumer is
+ * compiled once for building nodes and, where reached from {@link Parsers#skip(Consumer)}
+ * and the like, once for recognizing only. Consumers not provided by
+ * {@link Parsers} (and replace) are invoked as they are.
+ */
+final class GrammarCompiler {
+	private final Map<Consumer, Integer> incoming = new IdentityHashMap<>();
+	private final List<Map<Consumer, Integer>> ruleIds = Arrays.<Map<Consumer, Integer>> asList(new IdentityHashMap<Consumer, Integer>(), new IdentityHashMap<Consumer, Integer>());
+	private final List<Consumer> ruleConsumers = new ArrayList<>();
+	private final List<Boolean> ruleModes = new ArrayList<>();
+	private final List<Integer> ruleAddresses = new ArrayList<>();
+	private final Deque<Integer> pendingRules = new ArrayDeque<>();
+
+	private final Map<String, Integer> tokens = new HashMap<>();
+	private final Map<CharacterMatcher, Integer> matchers = new IdentityHashMap<>();
+	private final Map<Consumer, Integer> consumers = new IdentityHashMap<>();
+	private final List<String> tokenList = new ArrayList<>();
+	private final List<CharacterMatcher> matcherList = new ArrayList<>();
+	private final List<Consumer> consumerList = new ArrayList<>();
+
+	private int[] code = new int[64];
+	private int length;
+
+	private GrammarCompiler() {
+	}
+
+	static Program compile(Consumer root) {
+		if (root instanceof Program)
+			return (Program) root;
+		final GrammarCompiler compiler = new GrammarCompiler();
+		compiler.count(root);
+		final int captureEntry = compiler.length;
+		compiler.emit(root, false);
+		compiler.op(Program.END);
+		final int discardEntry = compiler.length;
+		compiler.emit(root, true);
+		compiler.op(Program.END);
+		while (!compiler.pendingRules.isEmpty())
+			compiler.rule(compiler.pendingRules.poll());
+		return compiler.program(root, captureEntry, discardEntry);
+	}
+
+	private Program program(Consumer root, int captureEntry, int discardEntry) {
+		final int[] rules = new int[ruleAddresses.size()];
+		for (int i = 0; i < rules.length; i++)
+			rules[i] = ruleAddresses.get(i);
+		return new Program(root, Arrays.copyOf(code, length), rules,
+		    tokenList.toArray(new String[tokenList.size()]),
+		    matcherList.toArray(new CharacterMatcher[matcherList.size()]),
+		    consumerList.toArray(new Consumer[consumerList.size()]),
+		    captureEntry, discardEntry, -1);
+	}
+
+	/**
+	 * Counts the places each consumer is reached from, references counting
+	 * twice so that their targets always become rules.
+	 */
+	private void count(Consumer root) {
+		final MemoizationPolicy.Structure structure = new MemoizationPolicy.Structure();
+		final Deque<Consumer> queue = new ArrayDeque<>();
+		queue.add(root);
+		incoming.put(root, 1);
+		while (!queue.isEmpty()) {
+			final Consumer c = queue.poll();
+			final boolean reference = Parsers.accept(c, new DefaultConsumerVisitor<Boolean>() {
+				@Override
+				protected Boolean otherwise(Consumer self) {
+					return false;
+				}
+
+				@Override
+				public Boolean reference(Consumer self, Consumer target) {
+					return true;
+				}
+			});
+			for (final Consumer d : Parsers.accept(c, structure)) {
+				final Integer n = incoming.get(d);
+				incoming.put(d, (n == null ? 0 : n) + (reference ? 2 : 1));
+				if (n == null)
+					queue.add(d);
+			}
+		}
+	}
+
+	private void rule(int id) {
+		ruleAddresses.set(id, length);
+		body(ruleConsumers.get(id), ruleModes.get(id));
+		op(Program.RETURN);
+	}
+
+	private int ruleId(Consumer c, boolean discard) {
+		final Map<Consumer, Integer> ids = ruleIds.get(discard ? 1 : 0);
+		Integer id = ids.get(c);
+		if (id == null) {
+			id = ruleAddresses.size();
+			ids.put(c, id);
+			ruleConsumers.add(c);
+			ruleModes.add(discard);
+			ruleAddresses.add(-1);
+			pendingRules.add(id);
+		}
+		return id;
+	}
+
+	private void emit(Consumer c, boolean discard) {
+		final Integer n = incoming.get(c);
+		if (n != null && n > 1)
+			op(Program.CALL, ruleId(c, discard));
+		else
+			body(c, discard);
+	}
+
+	private void body(final Consumer c, final boolean discard) {
+		if (c instanceof Program) {
+			emit(((Program) c).root, discard);
+			return;
+		}
+		if (c instanceof Specializer.Specialized) {
+			emit(((Specializer.Specialized) c).root, discard);
+			return;
+		}
+		Parsers.accept(c, new ConsumerVisitor<Void>() {
+			@Override
+			public Void sequence(Consumer self, final Consumer[] parsers) {
+				node(self, discard, new Runnable() {
+					@Override
+					public void run() {
+						for (final Consumer parser : parsers)
+							emit(parser, discard);
+					}
+				});
+				return null;
+			}
+
+			@Override
+			public Void alternative(Consumer self, final Consumer[] parsers) {
+				node(self, discard, new Runnable() {
+					@Override
+					public void run() {
+						final int[] ends = new int[parsers.length];
+						int next = op(Program.ALT, parsers.length > 1 ? 0 : -1);
+						for (int i = 0; i < parsers.length; i++) {
+							if (i > 0) {
+								patch(next, length);
+								next = op(Program.RETRY, i < parsers.length - 1 ? 0 : -1);
+							}
+							emit(parsers[i], discard);
+							ends[i] = op(Program.ALT_END, 0);
+						}
+						for (final int end : ends)
+							patch(end, length);
+					}
+				});
+				return null;
+			}
+
+			@Override
+			public Void repeat(Consumer self, final Consumer parser, final int min, final int max) {
+				node(self, discard, new Runnable() {
+					@Override
+					public void run() {
+						final int rep = op(Program.REP, 0);
+						final int head = length;
+						final int loop = op(Program.LOOP, min, max, 0);
+						emit(parser, discard);
+						op(Program.AGAIN, head);
+						patch(rep, length);
+						patch(loop + 2, length);
+						op(Program.REP_END, min);
+					}
+				});
+				return null;
+			}
+
+			@Override
+			public Void wrap(Consumer self, final Consumer parser) {
+				if (self instanceof NodeBuilder) {
+					node(self, discard, new Runnable() {
+						@Override
+						public void run() {
+							emit(parser, discard);
+						}
+					});
+				}
+				else if (self instanceof Parsers.Group) {
+					emit(parser, discard);
+				}
+				else {
+					invoke(self, discard);
+				}
+				return null;
+			}
+
+			@Override
+			public Void ignore(Consumer self, Consumer parser) {
+				emit(parser, true);
+				return null;
+			}
+
+			@Override
+			public Void require(Consumer self, Consumer parser) {
+				op(Program.REQUIRE);
+				emit(parser, discard);
+				op(Program.UNREQUIRE);
+				return null;
+			}
+
+			@Override
+			public Void preserve(Consumer self, final Consumer parser) {
+				node(self, discard, new Runnable() {
+					@Override
+					public void run() {
+						op(Program.PIN);
+						emit(parser, discard);
+						op(Program.UNPIN);
+					}
+				});
+				return null;
+			}
+
+			@Override
+			public Void memoization(Consumer self, final Consumer parser, boolean memoize) {
+				if (self instanceof NodeBuilder) {
+					node(self, discard, new Runnable() {
+						@Override
+						public void run() {
+							emit(parser, discard);
+						}
+					});
+				}
+				else {
+					emit(parser, discard);
+				}
+				return null;
+			}
+
+			@Override
+			public Void subparse(Consumer self, Consumer scanner, Consumer parser) {
+				op(Program.SUB);
+				emit(scanner, true);
+				op(Program.LIMIT);
+				emit(parser, discard);
+				op(Program.UNSUB);
+				return null;
+			}
+
+			@Override
+			public Void reference(Consumer self, Consumer target) {
+				if (target == null)
+					throw new IllegalStateException("Reference without target: " + self);
+				// Seeds are grown by the reference itself
+				if (MemoizationPolicy.isLeftRecursive(self))
+					invoke(self, discard);
+				else
+					op(Program.CALL, ruleId(target, discard));
+				return null;
+			}
+
+			@Override
+			public Void exact(Consumer self, String token) {
+				if (discard)
+					op(Program.EXACT, token(token), consumer(self));
+				else
+					op(Program.EXACT_NODE, token(token), consumer(self));
+				return null;
+			}
+
+			@Override
+			public Void matches(Consumer self, int min, int max, CharacterMatcher matcher) {
+				if (discard)
+					op(Program.SET, matcher(matcher), min, max, consumer(self));
+				else
+					op(Program.SET_NODE, matcher(matcher), min, max, consumer(self));
+				return null;
+			}
+
+			@Override
+			public Void exactIgnoreCase(Consumer self, String token) {
+				invoke(self, discard);
+				return null;
+			}
+
+			@Override
+			public Void operators(Consumer self, Consumer operand, Consumer[] prefix, Consumer[] suffix) {
+				invoke(self, discard);
+				return null;
+			}
+
+			@Override
+			public Void oneOf(Consumer self, Consumer[] tokens) {
+				invoke(self, discard);
+				return null;
+			}
+
+			@Override
+			public Void endOfInput(Consumer self) {
+				op(Program.END_OF_INPUT, consumer(self));
+				return null;
+			}
+
+			@Override
+			public Void cut(Consumer self) {
+				op(Program.CUT);
+				return null;
+			}
+
+			@Override
+			public Void commit(Consumer self) {
+				op(Program.COMMIT);
+				return null;
+			}
+
+			@Override
+			public Void opaque(Consumer self) {
+				invoke(self, discard);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Emits a consumer that builds its own node (and may be memoized) around
+	 * the code emitted by body.
+	 */
+	private void node(Consumer self, boolean discard, Runnable body) {
+		final int consumer = consumer(self);
+		final int memo = op(discard ? Program.MEMO_DISCARD : Program.MEMO, consumer, 0);
+		if (!discard)
+			op(Program.OPEN);
+		body.run();
+		op(discard ? Program.UNMEMO : Program.CLOSE, consumer);
+		patch(memo + 1, length);
+	}
+
+	private void invoke(Consumer self, boolean discard) {
+		op(Program.INVOKE, consumer(self), discard ? 1 : 0);
+	}
+
+	private int token(String token) {
+		Integer i = tokens.get(token);
+		if (i == null) {
+			tokens.put(token, i = tokenList.size());
+			tokenList.add(token);
+		}
+		return i;
+	}
+
+	private int matcher(CharacterMatcher matcher) {
+		Integer i = matchers.get(matcher);
+		if (i == null) {
+			matchers.put(matcher, i = matcherList.size());
+			matcherList.add(matcher);
+		}
+		return i;
+	}
+
+	private int consumer(Consumer consumer) {
+		Integer i = consumers.get(consumer);
+		if (i == null) {
+			consumers.put(consumer, i = consumerList.size());
+			consumerList.add(consumer);
+		}
+		return i;
+	}
+
+	/**
+	 * Appends an instruction.
+	 *
+	 * @return The address of its first operand
+	 */
+	private int op(int opcode, int... operands) {
+		if (length + operands.length + 1 > code.length)
+			code = Arrays.copyOf(code, Math.max(code.length << 1, length + operands.length + 1));
+		code[length++] = opcode;
+		final int address = length;
+		for (final int operand : operands)
+			code[length++] = operand;
+		return address;
+	}
+
+	private void patch(int address, int value) {
+		code[address] = value;
+	}
+}
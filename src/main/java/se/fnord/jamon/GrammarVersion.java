@@ -0,0 +1,90 @@
+package se.fnord.jamon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The targets of the references that an analysis of a grammar (eg. a
+ * memoization policy or a dispatch table) was made with, to tell when the
+ * analysis is stale.
+ * <p>
+ * Retargeting any reference advances a global count of changes. While the
+ * count does not move, checking a version is a single read. Once it has, the
+ * references of the version are compared to their targets, so changes to
+ * other grammars do not invalidate it.
+ */
+final class GrammarVersion {
+	private static final AtomicInteger changes = new AtomicInteger();
+	private static final Consumer NOT_A_REFERENCE = new Consumer() {
+		@Override
+		public ParseContext consume(ParseContext input, Node parent) {
+			throw new UnsupportedOperationException();
+		}
+	};
+
+	private final Consumer[] references;
+	private final Consumer[] targets;
+	// The count of changes the targets were last found unchanged at
+	private volatile int checked;
+
+	private GrammarVersion(int checked, Consumer[] references, Consumer[] targets) {
+		this.checked = checked;
+		this.references = references;
+		this.targets = targets;
+	}
+
+	/**
+	 * Records the current targets of the references among consumers.
+	 */
+	static GrammarVersion of(Collection<Consumer> consumers) {
+		final int current = changes.get();
+		final List<Consumer> references = new ArrayList<>();
+		final List<Consumer> targets = new ArrayList<>();
+		for (final Consumer c : consumers) {
+			final Consumer target = target(c);
+			if (target != NOT_A_REFERENCE) {
+				references.add(c);
+				targets.add(target);
+			}
+		}
+		return new GrammarVersion(current, references.toArray(new Consumer[references.size()]), targets.toArray(new Consumer[targets.size()]));
+	}
+
+	/**
+	 * Notes that a reference has been retargeted.
+	 */
+	static void changed() {
+		changes.incrementAndGet();
+	}
+
+	/**
+	 * @return false if a reference has been retargeted since the version was
+	 *         recorded
+	 */
+	boolean isCurrent() {
+		final int current = changes.get();
+		if (current == checked)
+			return true;
+		for (int i = 0; i < references.length; i++)
+			if (target(references[i]) != targets[i])
+				return false;
+		checked = current;
+		return true;
+	}
+
+	private static Consumer target(Consumer c) {
+		return Parsers.accept(c, new DefaultConsumerVisitor<Consumer>() {
+			@Override
+			protected Consumer otherwise(Consumer self) {
+				return NOT_A_REFERENCE;
+			}
+
+			@Override
+			public Consumer reference(Consumer self, Consumer target) {
+				return target;
+			}
+		});
+	}
+}
@@ -0,0 +1,33 @@
+package se.fnord.jamon;
+
+/**
+ * Selects which consumers have their results memoized during a parse.
+ * <p>
+ * Consumers wrapped with {@link Parsers#memoize(Consumer)} or
+ * {@link Parsers#noMemo(Consumer)} are memoized (or not) regardless of mode.
+ */
+public enum Memoization {
+	/**
+	 * Memoize every combinator at every start position. Guarantees linear
+	 * time parsing at the cost of a memo table entry per (position, combinator).
+	 */
+	ALL,
+
+	/**
+	 * Only memoize explicitly requested consumers.
+	 */
+	NONE,
+
+	/**
+	 * Only memoize consumers that may be invoked at the start of more than one
+	 * branch of the same alternative, ie. consumers that backtracking may
+	 * re-run at the same position.
+	 * <p>
+	 * This is the default. It keeps the memo table small and is as fast as
+	 * {@link #ALL} for grammars that backtrack little, but does not guarantee
+	 * linear time: consumers re-run after the start of a branch (eg. the
+	 * second item of two sequences sharing a prefix) are parsed again. Use
+	 * {@link #ALL} for grammars that backtrack over long inputs.
+	 */
+	AUTO
+}
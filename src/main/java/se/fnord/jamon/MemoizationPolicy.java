@@ -0,0 +1,535 @@
+package se.fnord.jamon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which consumers of a grammar to memoize.
+ * <p>
+ * Consumers that may pass a cut not enclosed by an alternative or repetition
+ * are never memoized, since a memoized result would not replay the cut.
+ * Left recursive references are always memoized, so that each seed is only
+ * grown once per position.
+ */
+final class MemoizationPolicy implements Predicate<Consumer> {
+	/**
+	 * Implemented by consumers that can hold the policy of the grammar they
+	 * are the root of, see {@link MemoizationPolicy#cached(Consumer, Memoization)}.
+	 */
+	interface Holder {
+		Cached cachedPolicy();
+
+		void cachedPolicy(Cached cached);
+	}
+
+	static final class Cached {
+		private final Memoization mode;
+		private final GrammarVersion version;
+		private final Predicate<Consumer> policy;
+
+		private Cached(Memoization mode, GrammarVersion version, Predicate<Consumer> policy) {
+			this.mode = mode;
+			this.version = version;
+			this.policy = policy;
+		}
+	}
+
+	private final Set<Consumer> memoized;
+	private final Set<Consumer> excluded;
+	private final boolean memoizeAll;
+
+	private MemoizationPolicy(Set<Consumer> memoized, Set<Consumer> excluded, boolean memoizeAll) {
+		this.memoized = memoized;
+		this.excluded = excluded;
+		this.memoizeAll = memoizeAll;
+	}
+
+	@Override
+	public boolean test(Consumer consumer) {
+		if (excluded.contains(consumer))
+			return false;
+		return memoizeAll || memoized.contains(consumer);
+	}
+
+	private static Set<Consumer> identitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<Consumer, Boolean>());
+	}
+
+	/**
+	 * Returns the memoization policy for the grammar starting at root, kept
+	 * on root (if it is provided by {@link Parsers}) until a reference of the
+	 * grammar is retargeted, so parsing with the same root does not analyze
+	 * the grammar again.
+	 */
+	static Predicate<Consumer> cached(Consumer root, Memoization mode) {
+		if (!(root instanceof Holder))
+			return create(root, mode);
+		final Holder holder = (Holder) root;
+		final Cached cached = holder.cachedPolicy();
+		if (cached != null && cached.mode == mode && cached.version.isCurrent())
+			return cached.policy;
+		final List<Consumer> consumers = reachable(root);
+		final GrammarVersion version = GrammarVersion.of(consumers);
+		final Predicate<Consumer> policy = create(consumers, mode);
+		holder.cachedPolicy(new Cached(mode, version, policy));
+		return policy;
+	}
+
+	/**
+	 * Creates the memoization policy for the grammar starting at root.
+	 */
+	static Predicate<Consumer> create(Consumer root, Memoization mode) {
+		return create(reachable(root), mode);
+	}
+
+	private static Predicate<Consumer> create(List<Consumer> consumers, Memoization mode) {
+		final Set<Consumer> memoized = identitySet();
+		final Set<Consumer> excluded = identitySet();
+		final Map<Consumer, Consumer[]> starts = new IdentityHashMap<>();
+		final Set<Consumer> nullable = nullable(consumers);
+		excluded.addAll(cutExposed(consumers));
+
+		final ConsumerVisitor<Void> marks = new DefaultConsumerVisitor<Void>() {
+			@Override
+			protected Void otherwise(Consumer self) {
+				return null;
+			}
+
+			@Override
+			public Void memoization(Consumer self, Consumer parser, boolean memoize) {
+				if (memoize)
+					memoized.add(self);
+				else
+					excluded.add(parser);
+				return null;
+			}
+		};
+
+		for (final Consumer c : consumers) {
+			Parsers.accept(c, marks);
+			starts.put(c, starts(c, nullable));
+		}
+		for (final Consumer c : consumers) {
+			if (isReference(c) && isLeftRecursive(c, starts)) {
+				memoized.add(c);
+				excluded.remove(c);
+			}
+		}
+
+		if (mode == Memoization.AUTO) {
+			for (final Consumer c : consumers) {
+				final Consumer[] branches = alternatives(c);
+				if (branches == null)
+					continue;
+				final Set<Consumer> seen = identitySet();
+				for (final Consumer branch : branches) {
+					for (final Consumer d : closure(branch, starts)) {
+						if (!seen.add(d))
+							memoized.add(d);
+					}
+				}
+			}
+		}
+		return new MemoizationPolicy(memoized, excluded, mode == Memoization.ALL);
+	}
+
+	/**
+	 * @return Whether reference may invoke itself at the position it was
+	 *         invoked at
+	 */
+	static boolean isLeftRecursive(Consumer reference) {
+		return isLeftRecursive(reference, reachable(reference));
+	}
+
+	/**
+	 * @param consumers The consumers reachable from reference
+	 */
+	static boolean isLeftRecursive(Consumer reference, List<Consumer> consumers) {
+		final Set<Consumer> nullable = nullable(consumers);
+		final Map<Consumer, Consumer[]> starts = new IdentityHashMap<>();
+		for (final Consumer c : consumers)
+			starts.put(c, starts(c, nullable));
+		return isLeftRecursive(reference, starts);
+	}
+
+	private static boolean isLeftRecursive(Consumer c, Map<Consumer, Consumer[]> starts) {
+		for (final Consumer d : starts.get(c))
+			if (closure(d, starts).contains(c))
+				return true;
+		return false;
+	}
+
+	private static boolean isReference(Consumer c) {
+		return Parsers.accept(c, new DefaultConsumerVisitor<Boolean>() {
+			@Override
+			protected Boolean otherwise(Consumer self) {
+				return false;
+			}
+
+			@Override
+			public Boolean reference(Consumer self, Consumer target) {
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * All consumers invoked at the same position as branch, including branch.
+	 */
+	private static Set<Consumer> closure(Consumer branch, Map<Consumer, Consumer[]> starts) {
+		final Set<Consumer> result = identitySet();
+		final Deque<Consumer> queue = new ArrayDeque<>();
+		queue.add(branch);
+		result.add(branch);
+		while (!queue.isEmpty()) {
+			for (final Consumer d : starts.get(queue.poll())) {
+				if (result.add(d))
+					queue.add(d);
+			}
+		}
+		return result;
+	}
+
+	private static Consumer[] alternatives(Consumer c) {
+		return Parsers.accept(c, new DefaultConsumerVisitor<Consumer[]>() {
+			@Override
+			protected Consumer[] otherwise(Consumer self) {
+				return null;
+			}
+
+			@Override
+			public Consumer[] alternative(Consumer self, Consumer[] parsers) {
+				return parsers;
+			}
+		});
+	}
+
+	static List<Consumer> reachable(Consumer root) {
+		final Set<Consumer> seen = identitySet();
+		final List<Consumer> result = new ArrayList<>();
+		final Deque<Consumer> queue = new ArrayDeque<>();
+		queue.add(root);
+		seen.add(root);
+		while (!queue.isEmpty()) {
+			final Consumer c = queue.poll();
+			result.add(c);
+			for (final Consumer d : children(c)) {
+				if (seen.add(d))
+					queue.add(d);
+			}
+		}
+		return result;
+	}
+
+	private static Consumer[] children(Consumer c) {
+		return Parsers.accept(c, new Structure());
+	}
+
+	/**
+	 * The children that are invoked at the start position of c.
+	 */
+	private static Consumer[] starts(Consumer c, final Set<Consumer> nullable) {
+		return Parsers.accept(c, new Structure() {
+			@Override
+			public Consumer[] sequence(Consumer self, Consumer[] parsers) {
+				int i = 0;
+				while (i < parsers.length && nullable.contains(parsers[i]))
+					i++;
+				return i < parsers.length ? Arrays.copyOf(parsers, i + 1) : parsers;
+			}
+
+			@Override
+			public Consumer[] operators(Consumer self, Consumer operand, Consumer[] prefix, Consumer[] suffix) {
+				if (nullable.contains(operand))
+					return super.operators(self, operand, prefix, suffix);
+				final Consumer[] starts = Arrays.copyOf(prefix, prefix.length + 1);
+				starts[prefix.length] = operand;
+				return starts;
+			}
+		});
+	}
+
+	private static Set<Consumer> nullable(List<Consumer> consumers) {
+		final Set<Consumer> nullable = identitySet();
+		final ConsumerVisitor<Boolean> visitor = new ConsumerVisitor<Boolean>() {
+			@Override
+			public Boolean sequence(Consumer self, Consumer[] parsers) {
+				for (final Consumer parser : parsers)
+					if (!nullable.contains(parser))
+						return false;
+				return true;
+			}
+
+			@Override
+			public Boolean alternative(Consumer self, Consumer[] parsers) {
+				for (final Consumer parser : parsers)
+					if (nullable.contains(parser))
+						return true;
+				return false;
+			}
+
+			@Override
+			public Boolean repeat(Consumer self, Consumer parser, int min, int max) {
+				return min == 0 || nullable.contains(parser);
+			}
+
+			@Override
+			public Boolean wrap(Consumer self, Consumer parser) {
+				return nullable.contains(parser);
+			}
+
+			@Override
+			public Boolean ignore(Consumer self, Consumer parser) {
+				return nullable.contains(parser);
+			}
+
+			@Override
+			public Boolean require(Consumer self, Consumer parser) {
+				return nullable.contains(parser);
+			}
+
+			@Override
+			public Boolean preserve(Consumer self, Consumer parser) {
+				return true;
+			}
+
+			@Override
+			public Boolean memoization(Consumer self, Consumer parser, boolean memoize) {
+				return nullable.contains(parser);
+			}
+
+			@Override
+			public Boolean subparse(Consumer self, Consumer scanner, Consumer parser) {
+				return nullable.contains(scanner);
+			}
+
+			@Override
+			public Boolean reference(Consumer self, Consumer target) {
+				return nullable.contains(target);
+			}
+
+			@Override
+			public Boolean exact(Consumer self, String token) {
+				return false;
+			}
+
+			@Override
+			public Boolean matches(Consumer self, int min, int max, CharacterMatcher matcher) {
+				return min == 0;
+			}
+
+			@Override
+			public Boolean exactIgnoreCase(Consumer self, String token) {
+				return false;
+			}
+
+			@Override
+			public Boolean operators(Consumer self, Consumer operand, Consumer[] prefix, Consumer[] suffix) {
+				return nullable.contains(operand);
+			}
+
+			@Override
+			public Boolean oneOf(Consumer self, Consumer[] tokens) {
+				return false;
+			}
+
+			@Override
+			public Boolean endOfInput(Consumer self) {
+				return true;
+			}
+
+			@Override
+			public Boolean cut(Consumer self) {
+				return true;
+			}
+
+			@Override
+			public Boolean commit(Consumer self) {
+				return true;
+			}
+
+			@Override
+			public Boolean opaque(Consumer self) {
+				return true;
+			}
+		};
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (final Consumer c : consumers) {
+				if (!nullable.contains(c) && Parsers.accept(c, visitor))
+					changed = nullable.add(c);
+			}
+		}
+		return nullable;
+	}
+
+	/**
+	 * The consumers that may pass a cut without it being consumed by an
+	 * enclosing alternative or repetition (or stopped by a lookahead).
+	 */
+	private static Set<Consumer> cutExposed(List<Consumer> consumers) {
+		final Set<Consumer> exposed = identitySet();
+		final ConsumerVisitor<Consumer[]> visitor = new Structure() {
+			@Override
+			public Consumer[] alternative(Consumer self, Consumer[] parsers) {
+				return NONE;
+			}
+
+			@Override
+			public Consumer[] operators(Consumer self, Consumer operand, Consumer[] prefix, Consumer[] suffix) {
+				return NONE;
+			}
+
+			@Override
+			public Consumer[] repeat(Consumer self, Consumer parser, int min, int max) {
+				return NONE;
+			}
+
+			@Override
+			public Consumer[] preserve(Consumer self, Consumer parser) {
+				return NONE;
+			}
+
+			@Override
+			public Consumer[] subparse(Consumer self, Consumer scanner, Consumer parser) {
+				return NONE;
+			}
+
+			@Override
+			public Consumer[] cut(Consumer self) {
+				return new Consumer[] { self };
+			}
+		};
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (final Consumer c : consumers) {
+				if (exposed.contains(c))
+					continue;
+				for (final Consumer d : Parsers.accept(c, visitor)) {
+					if (d == c || exposed.contains(d)) {
+						changed = exposed.add(c);
+						break;
+					}
+				}
+			}
+		}
+		return exposed;
+	}
+
+	/**
+	 * Returns the consumers invoked by a consumer.
+	 */
+	static class Structure implements ConsumerVisitor<Consumer[]> {
+		static final Consumer[] NONE = new Consumer[0];
+
+		@Override
+		public Consumer[] sequence(Consumer self, Consumer[] parsers) {
+			return parsers;
+		}
+
+		@Override
+		public Consumer[] alternative(Consumer self, Consumer[] parsers) {
+			return parsers;
+		}
+
+		@Override
+		public Consumer[] repeat(Consumer self, Consumer parser, int min, int max) {
+			return new Consumer[] { parser };
+		}
+
+		@Override
+		public Consumer[] wrap(Consumer self, Consumer parser) {
+			return new Consumer[] { parser };
+		}
+
+		@Override
+		public Consumer[] ignore(Consumer self, Consumer parser) {
+			return new Consumer[] { parser };
+		}
+
+		@Override
+		public Consumer[] require(Consumer self, Consumer parser) {
+			return new Consumer[] { parser };
+		}
+
+		@Override
+		public Consumer[] preserve(Consumer self, Consumer parser) {
+			return new Consumer[] { parser };
+		}
+
+		@Override
+		public Consumer[] memoization(Consumer self, Consumer parser, boolean memoize) {
+			return new Consumer[] { parser };
+		}
+
+		@Override
+		public Consumer[] subparse(Consumer self, Consumer scanner, Consumer parser) {
+			return new Consumer[] { scanner, parser };
+		}
+
+		@Override
+		public Consumer[] reference(Consumer self, Consumer target) {
+			return target == null ? NONE : new Consumer[] { target };
+		}
+
+		@Override
+		public Consumer[] exact(Consumer self, String token) {
+			return NONE;
+		}
+
+		@Override
+		public Consumer[] matches(Consumer self, int min, int max, CharacterMatcher matcher) {
+			return NONE;
+		}
+
+		@Override
+		public Consumer[] exactIgnoreCase(Consumer self, String token) {
+			return NONE;
+		}
+
+		@Override
+		public Consumer[] operators(Consumer self, Consumer operand, Consumer[] prefix, Consumer[] suffix) {
+			final Consumer[] children = new Consumer[1 + prefix.length + suffix.length];
+			children[0] = operand;
+			System.arraycopy(prefix, 0, children, 1, prefix.length);
+			System.arraycopy(suffix, 0, children, 1 + prefix.length, suffix.length);
+			return children;
+		}
+
+		@Override
+		public Consumer[] oneOf(Consumer self, Consumer[] tokens) {
+			return NONE;
+		}
+
+		@Override
+		public Consumer[] endOfInput(Consumer self) {
+			return NONE;
+		}
+
+		@Override
+		public Consumer[] cut(Consumer self) {
+			return NONE;
+		}
+
+		@Override
+		public Consumer[] commit(Consumer self) {
+			return NONE;
+		}
+
+		@Override
+		public Consumer[] opaque(Consumer self) {
+			return NONE;
+		}
+	}
+}
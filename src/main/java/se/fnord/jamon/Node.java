@@ -8,8 +8,10 @@ import java.util.Objects;
 
 public class Node {
 	public static final int UNSET = -1;
+	private static final Node DISCARD = new Discard();
+
 	private final List<Node> children = new ArrayList<Node>();
-	private final String value;
+	private CharSequence value;
 	private Object attachment;
 	private int end;
 	private int start;
@@ -41,6 +43,17 @@ public class Node {
 		this.attachment = attachment;
 	}
 
+	/**
+	 * @param value The value, which is converted to a String only when
+	 *        {@link #value()} is first called
+	 */
+	public Node(int start, int end, CharSequence value, Object attachment) {
+		this.start = start;
+		this.end = end;
+		this.value = value;
+		this.attachment = attachment;
+	}
+
 	public Node(int start, int end, Object attachment) {
 		this.start = start;
 		this.end = end;
@@ -48,6 +61,24 @@ public class Node {
 		this.attachment = attachment;
 	}
 
+	/**
+	 * Returns a node that discards anything added to it. Consumers given it as
+	 * parent are only asked to recognize their input (eg. inside
+	 * {@link Parsers#skip(Consumer)}), and should not build nodes for it.
+	 *
+	 * @see #discards()
+	 */
+	public static Node discard() {
+		return DISCARD;
+	}
+
+	/**
+	 * @return true if this is the {@link #discard()} node
+	 */
+	public boolean discards() {
+		return false;
+	}
+
 	public int start() {
 		return start;
 	}
@@ -88,6 +119,18 @@ public class Node {
 	}
 
 	public String value() {
+		if (value == null || value instanceof String)
+			return (String) value;
+		final String s = value.toString();
+		value = s;
+		return s;
+	}
+
+	/**
+	 * @return The value, without creating a String for values that still refer
+	 *         to the parsed input
+	 */
+	public CharSequence valueSequence() {
 		return value;
 	}
 
@@ -102,7 +145,7 @@ public class Node {
 		if (!(obj instanceof Node))
 			return false;
 		final Node other = (Node) obj;
-		return (start == other.start) && (end == other.end) && Objects.equals(value, other.value) && Objects.equals(attachment, other.attachment) && Objects.equals(children, other.children);
+		return (start == other.start) && (end == other.end) && Objects.equals(value(), other.value()) && Objects.equals(attachment, other.attachment) && Objects.equals(children, other.children);
 	}
 
 	public boolean shallowEquals(Object obj) {
@@ -111,12 +154,12 @@ public class Node {
 		if (!(obj instanceof Node))
 			return false;
 		final Node other = (Node) obj;
-		return (start == other.start) && (end == other.end) && Objects.equals(value, other.value) && Objects.equals(attachment, other.attachment);
+		return (start == other.start) && (end == other.end) && Objects.equals(value(), other.value()) && Objects.equals(attachment, other.attachment);
 	}
 
 	@Override
 	public int hashCode() {
-		return (value == null ? 0 : value.hashCode()) + 31 * (attachment == null ? 0 : attachment.hashCode());
+		return (value == null ? 0 : value().hashCode()) + 31 * (attachment == null ? 0 : attachment.hashCode());
 	}
 
 	private static String toString(List<Node> nodes) {
@@ -180,4 +223,38 @@ public class Node {
 	public String dump() {
 		return dump("");
 	}
+
+	private static final class Discard extends Node {
+		@Override
+		public boolean discards() {
+			return true;
+		}
+
+		@Override
+		void start(int start) {
+		}
+
+		@Override
+		void end(int end) {
+		}
+
+		@Override
+		void attachment(Object attachment) {
+		}
+
+		@Override
+		Node addChildren(Node... nodes) {
+			return this;
+		}
+
+		@Override
+		Node addChildren(List<Node> nodes) {
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return "N[discard]";
+		}
+	}
 }
@@ -0,0 +1,25 @@
+package se.fnord.jamon;
+
+import se.fnord.jamon.internal.Cursor;
+
+/**
+ * The node building steps of a built-in consumer, for running it outside of
+ * its consume method.
+ */
+interface NodeBuilder {
+	/**
+	 * Completes the node of a match, eg. by creating its attachment.
+	 */
+	void finish(Node me);
+
+	/**
+	 * Adds a completed (possibly memoized) node to parent.
+	 */
+	void apply(Node parent, Node me);
+
+	/**
+	 * @return The node of a leaf consumer (exact or matches) matching from
+	 *         start to end
+	 */
+	Node leaf(Cursor cursor, int start, int end);
+}
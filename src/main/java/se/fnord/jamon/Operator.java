@@ -0,0 +1,76 @@
+package se.fnord.jamon;
+
+/**
+ * An operator of a table given to {@link Parsers#operators(Consumer, Operator...)}.
+ * <p>
+ * Operators with a higher precedence bind tighter. The nodes of operators
+ * have the operands as children (the operator itself is not kept) and an
+ * attachment from the attachment factory of the operator.
+ */
+public final class Operator {
+	enum Kind {
+		PREFIX, LEFT, RIGHT, POSTFIX
+	}
+
+	final Kind kind;
+	final Consumer consumer;
+	final int precedence;
+	final AttachmentFactory attachmentFactory;
+
+	private Operator(Kind kind, Consumer consumer, int precedence, AttachmentFactory attachmentFactory) {
+		this.kind = kind;
+		this.consumer = consumer;
+		this.precedence = precedence;
+		this.attachmentFactory = attachmentFactory;
+	}
+
+	/**
+	 * Returns an operator applied to the operand following it. The operand
+	 * extends over operators with at least the precedence of the operator.
+	 */
+	public static Operator prefix(Consumer operator, int precedence) {
+		return new Operator(Kind.PREFIX, operator, precedence, null);
+	}
+
+	/**
+	 * Returns a left associative operator between two operands, ie. a - b - c
+	 * is (a - b) - c.
+	 */
+	public static Operator infix(Consumer operator, int precedence) {
+		return new Operator(Kind.LEFT, operator, precedence, null);
+	}
+
+	/**
+	 * Returns a right associative operator between two operands, ie. a ^ b ^ c
+	 * is a ^ (b ^ c).
+	 */
+	public static Operator infixRight(Consumer operator, int precedence) {
+		return new Operator(Kind.RIGHT, operator, precedence, null);
+	}
+
+	/**
+	 * Returns an operator applied to the operand preceding it.
+	 */
+	public static Operator postfix(Consumer operator, int precedence) {
+		return new Operator(Kind.POSTFIX, operator, precedence, null);
+	}
+
+	public Operator attach(Object o) {
+		return attachmentFactory(new Parsers.StaticAttachmentFactory(o));
+	}
+
+	public Operator attachmentFactory(AttachmentFactory f) {
+		return new Operator(kind, consumer, precedence, f);
+	}
+
+	Object createAttachment(Node node) {
+		if (attachmentFactory == null)
+			return null;
+		return attachmentFactory.create(node.value(), node.children());
+	}
+
+	@Override
+	public String toString() {
+		return kind.toString().toLowerCase() + "[" + precedence + ", " + consumer + "]";
+	}
+}
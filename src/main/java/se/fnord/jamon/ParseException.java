@@ -1,8 +1,16 @@
 package se.fnord.jamon;
 
+import java.util.Collections;
+import java.util.List;
+
 public class ParseException extends Exception {
     private static final long serialVersionUID = -3561691790478317477L;
 
+    private int position = -1;
+    private int line = -1;
+    private int column = -1;
+    private List<String> expected = Collections.emptyList();
+
     public ParseException() {
     	super();
     }
@@ -14,6 +22,49 @@ public class ParseException extends Exception {
     	super(message, cause);
     }
 
+    /**
+     * @param position The position of the farthest failure
+     * @param line The line of position, or -1 if not known
+     * @param column The column of position, or -1 if not known
+     * @param expected Descriptions of what was expected at position
+     */
+    public ParseException(String message, int position, int line, int column, List<String> expected) {
+    	super(message);
+    	this.position = position;
+    	this.line = line;
+    	this.column = column;
+    	this.expected = Collections.unmodifiableList(expected);
+    }
+
+    /**
+     * @return The position of the farthest failure, or -1 if not known
+     */
+    public int position() {
+    	return position;
+    }
+
+    /**
+     * @return The line (counted from 1) of the farthest failure, or -1 if not known
+     */
+    public int line() {
+    	return line;
+    }
+
+    /**
+     * @return The column (counted from 1) of the farthest failure, or -1 if not known
+     */
+    public int column() {
+    	return column;
+    }
+
+    /**
+     * @return Descriptions of the tokens and character classes expected at
+     *         the farthest failure
+     */
+    public List<String> expected() {
+    	return expected;
+    }
+
     @Override
     public Throwable fillInStackTrace() {
     	return this;
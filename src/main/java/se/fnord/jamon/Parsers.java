@@ -1,14 +1,28 @@
 package se.fnord.jamon;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 import se.fnord.jamon.internal.Contexts;
+import se.fnord.jamon.internal.Cursor;
+import se.fnord.jamon.internal.InputException;
 
 public final class Parsers {
-	public static final class SubParser implements Consumer {
+	private static final String END_OF_INPUT = "end of input";
+
+	public static final class SubParser implements CursorConsumer {
 		private final Consumer scanner;
 		private final Consumer parser;
 		public SubParser(Consumer scanner, Consumer parser) {
@@ -18,10 +32,27 @@ public final class Parsers {
 
 		@Override
 		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
-			ParseContext limit = scanner.consume(input, new Node());
-			limit = input.splice(input.start(), limit.start());
-			limit = parser.consume(limit, parent);
-			return input.splice(limit.start(), input.end());
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+			final int choice = cursor.enterChoice(false, position);
+			try {
+				final int end = consumeAt(scanner, cursor, position, Node.discard());
+				if (end == FAIL)
+					return FAIL;
+				final int limit = cursor.limit(end);
+				try {
+					return consumeAt(parser, cursor, position, parent);
+				}
+				finally {
+					cursor.limit(limit);
+				}
+			}
+			finally {
+				cursor.exitChoice(choice);
+			}
 		}
 
 		@Override
@@ -30,7 +61,7 @@ public final class Parsers {
 		}
 	}
 
-	public static final class Group implements Consumer {
+	public static final class Group implements CursorConsumer {
 		private final String name;
 		private final Consumer parser;
 		public Group(String name, Consumer parser) {
@@ -40,11 +71,13 @@ public final class Parsers {
 
 		@Override
 		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
 			try {
-				return parser.consume(input, parent);
-			}
-			catch (ParseException e) {
-				throw new ParseException("Group " + name, e);
+				return consumeAt(parser, cursor, position, parent);
 			}
 			catch (FatalParseException e) {
 				throw new FatalParseException("Group " + name, e);
@@ -64,6 +97,10 @@ public final class Parsers {
 			this.o = o;
 		}
 
+		Object attachment() {
+			return o;
+		}
+
 		@Override
 		public Object create(String value, List<Node> children) {
 			return o;
@@ -75,36 +112,75 @@ public final class Parsers {
 		}
 	}
 
-	private static abstract class AbstractConsumer implements Consumer {
-		void doApply(Node parent, Node me) {
+	private static abstract class AbstractConsumer implements CursorConsumer, NodeBuilder, MemoizationPolicy.Holder {
+		private volatile MemoizationPolicy.Cached policy;
+
+		@Override
+		public MemoizationPolicy.Cached cachedPolicy() {
+			return policy;
+		}
+
+		@Override
+		public void cachedPolicy(MemoizationPolicy.Cached cached) {
+			policy = cached;
+		}
+
+		@Override
+		public void finish(Node me) {
+		}
+
+		@Override
+		public void apply(Node parent, Node me) {
 			throw new UnsupportedOperationException();
 		}
 
-		ParseContext doConsume(ParseContext input, Node me) throws ParseException, FatalParseException {
+		@Override
+		public Node leaf(Cursor cursor, int start, int end) {
 			throw new UnsupportedOperationException();
 		}
 
-		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
-			Node me;
-			me = input.consumerMatched(this);
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public final ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+			final int id = cursor.memoId(this);
+			Node me = cursor.memoized(id, position);
+			if (me == Cursor.MISMATCH)
+				return FAIL;
 			if (me != null) {
-				doApply(parent, me);
-				return input.splice(me.end());
+				if (!parent.discards())
+					apply(parent, me);
+				return me.end();
 			}
 
-			try {
-				me = new Node(null);
-				final ParseContext remaining = doConsume(input, me);
-				me.start(input.start());
-				me.end(remaining.start());
-				input.consumerMatches(this, me);
-				doApply(parent, me);
-				return remaining;
-			}
-			catch (ParseException e) {
-				input.consumerMismatches(this);
-				throw e;
-			}
+			// Without a node only mismatches are memoized, as a match would
+			// have no node to reuse
+			if (parent.discards())
+				return mismatch(cursor, id, position, doConsume(cursor, position, parent));
+
+			me = new Node(null);
+			final int end = doConsume(cursor, position, me);
+			if (end == FAIL)
+				return mismatch(cursor, id, position, end);
+			me.start(position);
+			me.end(end);
+			finish(me);
+			cursor.memoize(id, position, me);
+			apply(parent, me);
+			return end;
+		}
+
+		private static int mismatch(Cursor cursor, int id, int position, int end) {
+			if (end == FAIL)
+				cursor.memoize(id, position, null);
+			return end;
 		}
 	}
 
@@ -120,8 +196,16 @@ public final class Parsers {
 			this(null);
 		}
 
-		protected Object createAttachment(String value, List<Node> children) {
-			return attachmentFactory.create(value, children);
+		/**
+		 * Leaves the value of node unmaterialized unless the attachment
+		 * depends on it.
+		 */
+		protected Object createAttachment(Node node) {
+			if (node.discards())
+				return null;
+			if (attachmentFactory instanceof StaticAttachmentFactory)
+				return ((StaticAttachmentFactory) attachmentFactory).attachment();
+			return attachmentFactory.create(node.value(), node.children());
 		}
 
 		protected Object createAttachment(String value) {
@@ -134,8 +218,13 @@ public final class Parsers {
 		}
 	}
 
-	private static final class ParserReferenceImpl implements ParserReference {
+	private static final class ParserReferenceImpl implements ParserReference, CursorConsumer, MemoizationPolicy.Holder {
 		private Consumer target = null;
+		// Decided on first use, as the grammar may not be complete before, and
+		// again whenever the grammar changes
+		private boolean leftRecursive;
+		private volatile GrammarVersion version;
+		private volatile MemoizationPolicy.Cached policy;
 
 		@Override
 		public String toString() {
@@ -145,6 +234,17 @@ public final class Parsers {
 		@Override
 		public void setTarget(Consumer parser) {
 			this.target = parser;
+			GrammarVersion.changed();
+		}
+
+		@Override
+		public MemoizationPolicy.Cached cachedPolicy() {
+			return policy;
+		}
+
+		@Override
+		public void cachedPolicy(MemoizationPolicy.Cached cached) {
+			policy = cached;
 		}
 
 		@Override
@@ -159,12 +259,81 @@ public final class Parsers {
 
 		@Override
 		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
-			return target.consume(input, parent);
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+			if (!isLeftRecursive())
+				return consumeAt(target, cursor, position, parent);
+
+			final int seed = cursor.growth(this, position);
+			if (seed >= 0)
+				return apply(cursor.seed(seed), parent);
+			final int id = cursor.memoId(this);
+			final Node memoized = cursor.memoized(id, position);
+			if (memoized != null)
+				return apply(memoized, parent);
+			final Node grown = grow(cursor, position);
+			cursor.memoize(id, position, grown);
+			return apply(grown, parent);
+		}
+
+		/**
+		 * Parses target over and over, with invocations of this reference at
+		 * position returning the previous result, for as long as it matches
+		 * more of the input.
+		 *
+		 * @return A node holding the nodes of the longest match, or null
+		 */
+		private Node grow(Cursor cursor, int position) throws FatalParseException {
+			// Pinned, as each round reads the input from position again
+			final int choice = cursor.enterChoice(false, position);
+			final int seed = cursor.grow(this, position);
+			try {
+				Node best = null;
+				for (;;) {
+					final Node me = new Node(null);
+					final int end = consumeAt(target, cursor, position, me);
+					if (end == FAIL || (best != null && end <= best.end()))
+						return best;
+					me.start(position);
+					me.end(end);
+					cursor.seed(seed, best = me);
+				}
+			}
+			finally {
+				cursor.endGrowth(seed);
+				cursor.exitChoice(choice);
+			}
+		}
+
+		private static int apply(Node match, Node parent) {
+			if (match == null || match == Cursor.MISMATCH)
+				return FAIL;
+			if (!parent.discards())
+				parent.addChildren(match.children());
+			return match.end();
+		}
+
+		private boolean isLeftRecursive() {
+			// The volatile version is written last, publishing the flag
+			final GrammarVersion version = this.version;
+			if (version != null && version.isCurrent())
+				return leftRecursive;
+			final List<Consumer> consumers = MemoizationPolicy.reachable(this);
+			final GrammarVersion current = GrammarVersion.of(consumers);
+			leftRecursive = MemoizationPolicy.isLeftRecursive(this, consumers);
+			this.version = current;
+			return leftRecursive;
 		}
 	}
 
 	private static final class AlternativeParser extends AbstractParser {
 		private final Consumer[] parsers;
+		// Built on first use, as references may not have their targets before,
+		// and again whenever they are retargeted
+		private volatile FirstSet.Dispatch dispatch;
 
 		private AlternativeParser(AttachmentFactory attachmentFactory, Consumer[] parsers) {
 			super(attachmentFactory);
@@ -189,22 +358,41 @@ public final class Parsers {
 		}
 
 		@Override
-		ParseContext doConsume(ParseContext input, Node me) throws ParseException, FatalParseException {
-			for (Consumer parser : parsers) {
-				try {
-					final ParseContext remaining = parser.consume(input, me);
-					me.attachment(createAttachment(me.value(), me.children()));
-					return remaining;
-				}
-				catch (ParseException e) {
-					// Failures here are ok
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
+			FirstSet.Dispatch dispatch = this.dispatch;
+			if (dispatch == null || !dispatch.isCurrent())
+				this.dispatch = dispatch = FirstSet.dispatch(parsers);
+			final int row = dispatch.row(cursor, position);
+			final int[] branches = dispatch.branches(row);
+			if (branches.length == 0) {
+				dispatch.expectSkipped(cursor, position, row);
+				return FAIL;
+			}
+			final int choice = cursor.enterChoice(true, position);
+			try {
+				for (int i = 0; i < branches.length; i++) {
+					if (i == branches.length - 1)
+						cursor.armChoice(choice, false, position);
+					final int end = consumeAt(parsers[branches[i]], cursor, position, me);
+					// Failures here are ok, unless committed
+					if (end != FAIL || cursor.isCut(choice))
+						return end;
 				}
 			}
-			throw new ParseException("No matching alternative");
+			finally {
+				cursor.exitChoice(choice);
+			}
+			dispatch.expectSkipped(cursor, position, row);
+			return FAIL;
 		}
 
 		@Override
-		void doApply(Node parent, Node me) {
+		public void finish(Node me) {
+			me.attachment(createAttachment(me));
+		}
+
+		@Override
+		public void apply(Node parent, Node me) {
 			parent.addChildren(me);
 		}
 	}
@@ -236,14 +424,13 @@ public final class Parsers {
 		}
 
 		@Override
-		ParseContext doConsume(ParseContext input, Node me)
-				throws ParseException, FatalParseException {
-			return parser.consume(input, me);
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
+			return consumeAt(parser, cursor, position, me);
 		}
 
 		@Override
-		void doApply(Node parent, Node me) {
-			parent.addChildren(new Node(me.start(), me.end(), join(joint, me), createAttachment(me.value(), me.children())));
+		public void apply(Node parent, Node me) {
+			parent.addChildren(new Node(me.start(), me.end(), join(joint, me), createAttachment(me)));
 		}
 	}
 
@@ -273,20 +460,22 @@ public final class Parsers {
 		}
 
 		@Override
-		ParseContext doConsume(ParseContext input, Node me) throws ParseException, FatalParseException {
-			try {
-				for (Consumer parser : parsers)
-					input = parser.consume(input, me);
-				me.attachment(createAttachment(me.value(), me.children()));
-			}
-			catch (ParseException e) {
-				throw new ParseException("Sequence failed", e);
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
+			for (Consumer parser : parsers) {
+				position = consumeAt(parser, cursor, position, me);
+				if (position == FAIL)
+					break;
 			}
-			return input;
+			return position;
+		}
+
+		@Override
+		public void finish(Node me) {
+			me.attachment(createAttachment(me));
 		}
 
 		@Override
-		void doApply(Node parent, Node me) {
+		public void apply(Node parent, Node me) {
 			parent.addChildren(me);
 		}
 	}
@@ -316,29 +505,197 @@ public final class Parsers {
 		}
 
 		@Override
-		ParseContext doConsume(ParseContext input, Node me) throws ParseException, FatalParseException {
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
 			int i = 0;
+			final int choice = cursor.enterChoice(true, position);
 			try {
 				while (max == -1 || i < max) {
-					input = parser.consume(input, me);
+					cursor.armChoice(choice, i >= min, position);
+					final int end = consumeAt(parser, cursor, position, me);
+					if (end == FAIL) {
+						// Failures here are ok, unless committed
+						if (cursor.isCut(choice))
+							return FAIL;
+						break;
+					}
+					position = end;
 					i++;
 				}
-				me.attachment(createAttachment(me.value(), me.children()));
 			}
-			catch (ParseException e) {
-				// Failures here are ok
+			finally {
+				cursor.exitChoice(choice);
 			}
-			if (i < min)
-				throw new ParseException("Out of bounds");
-			return input;
+			return i < min ? FAIL : position;
+		}
+
+		@Override
+		public void finish(Node me) {
+			me.attachment(createAttachment(me));
 		}
 
 		@Override
-		void doApply(Node parent, Node me) {
+		public void apply(Node parent, Node me) {
 			parent.addChildren(me);
 		}
 	}
 
+	/**
+	 * Parses operator expressions by precedence climbing: an operand (or a
+	 * prefix operator and its operand), then as long as an operator binding
+	 * at least as tight as the current level follows, its right hand side at
+	 * the level of the operator.
+	 */
+	private static final class OperatorParser extends AbstractParser {
+		private final Consumer operand;
+		private final Operator[] prefix;
+		private final Operator[] suffix;
+		// Without an attachment the expression is not wrapped in a node
+		private final boolean wrap;
+
+		private OperatorParser(AttachmentFactory attachmentFactory, Consumer operand, Operator[] prefix, Operator[] suffix) {
+			super(attachmentFactory);
+			this.operand = operand;
+			this.prefix = prefix;
+			this.suffix = suffix;
+			this.wrap = attachmentFactory != null;
+		}
+
+		@Override
+		public Parser attachmentFactory(AttachmentFactory f) {
+			return new OperatorParser(f, operand, prefix, suffix);
+		}
+
+		private static Consumer[] consumers(Operator[] operators) {
+			final Consumer[] consumers = new Consumer[operators.length];
+			for (int i = 0; i < operators.length; i++)
+				consumers[i] = operators[i].consumer;
+			return consumers;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("operators[").append(operand);
+			for (final Operator o : prefix)
+				sb.append(", ").append(o);
+			for (final Operator o : suffix)
+				sb.append(", ").append(o);
+			sb.append("]");
+			return sb.toString();
+		}
+
+		@Override
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
+			return expression(cursor, position, Integer.MIN_VALUE, me);
+		}
+
+		/**
+		 * Parses an expression of operators with at least precedence min,
+		 * adding its node to out. The minimum is a long, as the right operand
+		 * of a left associative operator needs a precedence above it.
+		 */
+		private int expression(Cursor cursor, int position, long min, Node out) throws FatalParseException {
+			final boolean discard = out.discards();
+			final int choice = cursor.enterChoice(true, position);
+			try {
+				Node left = null;
+				int end = FAIL;
+				for (final Operator o : prefix) {
+					final int start = consumeAt(o.consumer, cursor, position, Node.discard());
+					if (start != FAIL) {
+						final Node holder = discard ? out : new Node(null);
+						end = expression(cursor, start, o.precedence, holder);
+						if (end != FAIL) {
+							left = discard ? null : node(o, position, end, holder.children());
+							break;
+						}
+					}
+					// Failures here are ok, unless committed
+					if (cursor.isCut(choice))
+						return FAIL;
+				}
+				if (end == FAIL) {
+					final Node holder = discard ? out : new Node(null);
+					end = consumeAt(operand, cursor, position, holder);
+					if (end == FAIL)
+						return FAIL;
+					if (!discard)
+						left = single(holder, position, end);
+				}
+
+				next:
+				for (;;) {
+					cursor.armChoice(choice, true, end);
+					for (final Operator o : suffix) {
+						if (o.precedence < min)
+							continue;
+						final int start = consumeAt(o.consumer, cursor, end, Node.discard());
+						if (start != FAIL) {
+							// Postfix operators that match nothing would apply forever
+							if (o.kind == Operator.Kind.POSTFIX && start > end) {
+								if (!discard)
+									left = node(o, position, start, Collections.singletonList(left));
+								end = start;
+								continue next;
+							}
+							if (o.kind == Operator.Kind.POSTFIX)
+								continue;
+							final Node right = discard ? out : new Node(null);
+							final int e = expression(cursor, start, o.kind == Operator.Kind.LEFT ? o.precedence + 1L : o.precedence, right);
+							if (e != FAIL) {
+								if (!discard)
+									left = node(o, position, e, Arrays.asList(left, right.firstChild()));
+								end = e;
+								continue next;
+							}
+						}
+						if (cursor.isCut(choice))
+							return FAIL;
+					}
+					break;
+				}
+				if (!discard)
+					out.addChildren(left);
+				return end;
+			}
+			finally {
+				cursor.exitChoice(choice);
+			}
+		}
+
+		/**
+		 * @return The node of the operand, or a node holding them if the
+		 *         operand did not produce exactly one
+		 */
+		private static Node single(Node operand, int start, int end) {
+			if (operand.children().size() == 1)
+				return operand.firstChild();
+			operand.start(start);
+			operand.end(end);
+			return operand;
+		}
+
+		private static Node node(Operator o, int start, int end, List<Node> operands) {
+			final Node me = new Node(start, end, null);
+			me.addChildren(operands);
+			me.attachment(o.createAttachment(me));
+			return me;
+		}
+
+		@Override
+		public void finish(Node me) {
+			if (wrap)
+				me.attachment(createAttachment(me));
+		}
+
+		@Override
+		public void apply(Node parent, Node me) {
+			if (wrap)
+				parent.addChildren(me);
+			else
+				parent.addChildren(me.children());
+		}
+	}
+
 	private static final class LiftTransform extends AbstractParser {
 		private final Consumer parser;
 
@@ -357,12 +714,12 @@ public final class Parsers {
 		}
 
 		@Override
-		ParseContext doConsume(ParseContext input, Node me) throws ParseException, FatalParseException {
-		    return parser.consume(input, me);
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
+		    return consumeAt(parser, cursor, position, me);
 		}
 
 		@Override
-		void doApply(Node parent, Node me) {
+		public void apply(Node parent, Node me) {
 			for (Node m : me.children())
 				parent.addChildren(m.children());
 		}
@@ -387,21 +744,21 @@ public final class Parsers {
 		}
 
 		@Override
-		ParseContext doConsume(ParseContext input, Node me) throws ParseException, FatalParseException {
-		    return parser.consume(input, me);
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
+		    return consumeAt(parser, cursor, position, me);
 		}
 
 		@Override
-		void doApply(Node parent, Node me) {
+		public void apply(Node parent, Node me) {
 			for (Node m : me.children()) {
 				for (Node mm : m.children()) {
-					parent.addChildren(new Node(mm.start(), mm.end(), mm.value(), createAttachment(mm.value(), mm.children())));
+					parent.addChildren(new Node(mm.start(), mm.end(), mm.valueSequence(), createAttachment(mm)));
 				}
 			}
 		}
 	}
 
-	private static final class RequireTransform implements Consumer {
+	private static final class RequireTransform implements CursorConsumer {
 		private final Consumer consumer;
 
 		public RequireTransform(Consumer consumer) {
@@ -415,16 +772,96 @@ public final class Parsers {
 
 		@Override
 		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+			final int end = consumeAt(consumer, cursor, position, parent);
+			if (end == FAIL)
+				throw missing(cursor, position);
+			return end;
+		}
+	}
+
+	private static final class NestingTransform implements CursorConsumer {
+		private final Consumer consumer;
+		private final int maxNesting;
+
+		private NestingTransform(Consumer consumer, int maxNesting) {
+			this.consumer = consumer;
+			this.maxNesting = maxNesting;
+		}
+
+		@Override
+		public String toString() {
+			return "maxNesting[" + consumer + ", " + maxNesting + "]";
+		}
+
+		@Override
+		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+			final int previous = cursor.maxNesting(maxNesting);
 			try {
-				return consumer.consume(input, parent);
+				return consumeAt(consumer, cursor, position, parent);
 			}
-			catch (ParseException e) {
-				throw new FatalParseException(e);
+			finally {
+				cursor.maxNesting(previous);
 			}
 		}
 	}
 
-	private static final class EndOfInputTransform implements Transformer {
+	private static final class MemoizeTransform extends AbstractConsumer {
+		private final Consumer parser;
+
+		private MemoizeTransform(Consumer parser) {
+			this.parser = parser;
+		}
+
+		@Override
+		public String toString() {
+			return "memoize[" + parser + "]";
+		}
+
+		@Override
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
+			return consumeAt(parser, cursor, position, me);
+		}
+
+		@Override
+		public void apply(Node parent, Node me) {
+			parent.addChildren(me.children());
+		}
+	}
+
+	private static final class NoMemoTransform implements CursorConsumer {
+		private final Consumer parser;
+
+		private NoMemoTransform(Consumer parser) {
+			this.parser = parser;
+		}
+
+		@Override
+		public String toString() {
+			return "noMemo[" + parser + "]";
+		}
+
+		@Override
+		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+			return consumeAt(parser, cursor, position, parent);
+		}
+	}
+
+	private static final class EndOfInputTransform implements Transformer, CursorConsumer {
 		private EndOfInputTransform() {
 		}
 
@@ -435,13 +872,62 @@ public final class Parsers {
 
 		@Override
 		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
-			if (input.length() > 0)
-				throw new ParseException("End of input expected");
-			return input;
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) {
+			if (cursor.available(position, 1) > 0) {
+				cursor.expected(position, this);
+				return FAIL;
+			}
+			return position;
+		}
+	}
+
+	private static final class CommitTransform implements Transformer, CursorConsumer {
+		private CommitTransform() {
+		}
+
+		@Override
+		public String toString() {
+			return "commit";
+		}
+
+		@Override
+		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) {
+			cursor.commit(position);
+			return position;
+		}
+	}
+
+	private static final class CutTransform implements Transformer, CursorConsumer {
+		private CutTransform() {
+		}
+
+		@Override
+		public String toString() {
+			return "cut";
+		}
+
+		@Override
+		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) {
+			cursor.cut(position);
+			return position;
 		}
 	}
 
-	private static final class IgnoreTransform implements Transformer {
+	private static final class IgnoreTransform implements Transformer, CursorConsumer {
 		private final Consumer parser;
 
 		private IgnoreTransform(Consumer parser) {
@@ -455,7 +941,12 @@ public final class Parsers {
 
 		@Override
 		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
-			return parser.consume(input, new Node(null));
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+			return consumeAt(parser, cursor, position, Node.discard());
 		}
 	}
 
@@ -473,14 +964,23 @@ public final class Parsers {
 		}
 
 		@Override
-		ParseContext doConsume(ParseContext input, Node me) throws ParseException, FatalParseException {
-			parser.consume(input, me);
-			me.attachment(createAttachment(me.value(), me.children()));
-		    return input;
+		int doConsume(Cursor cursor, int position, Node me) throws FatalParseException {
+			final int choice = cursor.enterChoice(false, position);
+			try {
+				return consumeAt(parser, cursor, position, me) == FAIL ? FAIL : position;
+			}
+			finally {
+				cursor.exitChoice(choice);
+			}
+		}
+
+		@Override
+		public void finish(Node me) {
+			me.attachment(createAttachment(me));
 		}
 
 		@Override
-		void doApply(Node parent, Node me) {
+		public void apply(Node parent, Node me) {
 			parent.addChildren(me);
 		}
 
@@ -509,18 +1009,169 @@ public final class Parsers {
 		}
 
 		@Override
-		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
-			int i;
-			if (input.length() < token.length())
-				throw new ParseException(String.format("Token mismatch (%s)", token));
-			for (i = 0; i < token.length(); i++) {
-				if (token.charAt(i) != input.charAt(i))
-					throw new ParseException(String.format("Token mismatch (%s)", token));
+		public int consume(Cursor cursor, int position, Node parent) {
+			if (!cursor.regionMatches(position, token)) {
+				cursor.expected(position, this);
+				return FAIL;
 			}
 
-			final Node me = input.node(i, token, createAttachment(token));
-			parent.addChildren(me);
-			return input.splice(input.start() + i);
+			final int length = token.length();
+			if (!parent.discards())
+				parent.addChildren(leaf(cursor, position, position + length));
+			return position + length;
+		}
+
+		@Override
+		public Node leaf(Cursor cursor, int start, int end) {
+			return cursor.node(start, end, token, createAttachment(token));
+		}
+	}
+
+	/**
+	 * Like {@link ExactParser}, but the node has the matched input as value.
+	 */
+	private static final class ExactIgnoreCaseParser extends AbstractParser {
+		private final String token;
+
+		private ExactIgnoreCaseParser(AttachmentFactory attachment, String token) {
+			super(attachment);
+			this.token = token;
+		}
+
+		@Override
+		public String toString() {
+			return "exactIgnoreCase[\"" + token + "\"]";
+		}
+
+		@Override
+		public Parser attachmentFactory(AttachmentFactory f) {
+			return new ExactIgnoreCaseParser(f, token);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) {
+			if (!cursor.regionMatchesIgnoreCase(position, token)) {
+				cursor.expected(position, this);
+				return FAIL;
+			}
+
+			final int length = token.length();
+			if (!parent.discards())
+				parent.addChildren(leaf(cursor, position, position + length));
+			return position + length;
+		}
+
+		@Override
+		public Node leaf(Cursor cursor, int start, int end) {
+			final Node me = cursor.node(start, end, null);
+			me.attachment(createAttachment(me));
+			return me;
+		}
+	}
+
+	/**
+	 * Matches the first declared of several tokens in one pass over the
+	 * input, walking a trie of the tokens.
+	 */
+	private static final class OneOfParser extends AbstractParser {
+		private static final class Trie {
+			private char[] keys = new char[0];
+			private Trie[] next = new Trie[0];
+			// The index of the token ending here, or -1
+			private int token = -1;
+			// The lowest index of the tokens ending below here
+			private int below = Integer.MAX_VALUE;
+
+			private Trie child(char ch) {
+				int i = Arrays.binarySearch(keys, ch);
+				if (i < 0) {
+					i = -i - 1;
+					final char[] k = new char[keys.length + 1];
+					final Trie[] n = new Trie[next.length + 1];
+					System.arraycopy(keys, 0, k, 0, i);
+					System.arraycopy(next, 0, n, 0, i);
+					System.arraycopy(keys, i, k, i + 1, keys.length - i);
+					System.arraycopy(next, i, n, i + 1, next.length - i);
+					k[i] = ch;
+					n[i] = new Trie();
+					keys = k;
+					next = n;
+				}
+				return next[i];
+			}
+		}
+
+		private final Consumer[] tokens;
+		private final Trie root;
+
+		private OneOfParser(AttachmentFactory attachment, Consumer[] tokens, Trie root) {
+			super(attachment);
+			this.tokens = tokens;
+			this.root = root;
+		}
+
+		private static OneOfParser of(String[] alternatives) {
+			final Consumer[] tokens = new Consumer[alternatives.length];
+			final Trie root = new Trie();
+			for (int i = 0; i < alternatives.length; i++) {
+				tokens[i] = exact(alternatives[i]);
+				Trie node = root;
+				for (int j = 0; j < alternatives[i].length(); j++) {
+					node.below = Math.min(node.below, i);
+					node = node.child(alternatives[i].charAt(j));
+				}
+				// Later duplicates are never reached
+				if (node.token < 0)
+					node.token = i;
+			}
+			return new OneOfParser(null, tokens, root);
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("oneOf[");
+			sb.append(tokens[0]);
+			for (int i = 1; i < tokens.length; i++)
+				sb.append(", ").append(tokens[i]);
+			sb.append("]");
+			return sb.toString();
+		}
+
+		@Override
+		public Parser attachmentFactory(AttachmentFactory f) {
+			return new OneOfParser(f, tokens, root);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) {
+			Trie node = root;
+			int best = -1;
+			int length = 0;
+			for (int i = 0;; i++) {
+				if (node.token >= 0 && (best < 0 || node.token < best)) {
+					best = node.token;
+					length = i;
+				}
+				// No longer token could be declared before the best match
+				if (best >= 0 && best < node.below)
+					break;
+				if (cursor.available(position + i, 1) < 1)
+					break;
+				final int next = Arrays.binarySearch(node.keys, cursor.charAt(position + i));
+				if (next < 0)
+					break;
+				node = node.next[next];
+			}
+
+			if (best < 0) {
+				cursor.expected(position, tokens);
+				return FAIL;
+			}
+			if (!parent.discards()) {
+				final String token = ((ExactParser) tokens[best]).token;
+				parent.addChildren(cursor.node(position, position + length, token, createAttachment(token)));
+			}
+			return position + length;
 		}
 	}
 
@@ -533,7 +1184,7 @@ public final class Parsers {
 			super(attachment);
 			this.min = min;
 			this.max = max;
-			this.matcher = matcher;
+			this.matcher = CharacterMatchers.compile(matcher);
 		}
 
 		@Override
@@ -546,27 +1197,24 @@ public final class Parsers {
 			return new MatchParser(o, min, max, matcher);
 		}
 
-		public ParseContext consume(ParseContext input, Node parent) throws ParseException {
-			int i;
-			int m;
-			if (max != -1)
-				m = Math.min(input.length(), max);
-			else
-				m = input.length();
-
-			for (i = 0; i < m; i++) {
-				if (!matcher.match(input.charAt(i))) {
-					break;
-				}
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) {
+			final int i = cursor.scan(position, max, matcher);
+			if (i < min) {
+				cursor.expected(position + i, this);
+				return FAIL;
 			}
 
-			if (i < min)
-				throw new ParseException(String.format("Match count out of bounds (%d >= %d)", i, min));
+			if (!parent.discards())
+				parent.addChildren(leaf(cursor, position, position + i));
+			return position + i;
+		}
 
-			final Node me = input.node(i, null);
-			me.attachment(createAttachment(me.value(), me.children()));
-			parent.addChildren(me);
-			return input.splice(input.start() + i);
+		@Override
+		public Node leaf(Cursor cursor, int start, int end) {
+			final Node me = cursor.node(start, end, null);
+			me.attachment(createAttachment(me));
+			return me;
 		}
 	}
 
@@ -583,7 +1231,7 @@ public final class Parsers {
 		}
 	}
 
-	private static final class ReplaceTransform implements Transformer {
+	private static final class ReplaceTransform implements Transformer, CursorConsumer {
 		private final Translator translator;
 		private final Consumer parser;
 
@@ -594,22 +1242,172 @@ public final class Parsers {
 
 		@Override
 		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+			return consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+			if (parent.discards())
+				return consumeAt(parser, cursor, position, parent);
 			final Node x = new Node(null);
-			final ParseContext remaining = parser.consume(input, x);
+			final int end = consumeAt(parser, cursor, position, x);
+			if (end == FAIL)
+				return FAIL;
 			if (x.children().size() != 1)
 				throw new IllegalStateException();
 			final Node valueNode = x.children().get(0);
 			final String value = translator.translate(valueNode.value());
-			final Node me = input.node(remaining.start() - input.start(), value, valueNode.attachment());
+			final Node me = cursor.node(position, end, value, valueNode.attachment());
 			me.addChildren(valueNode.children());
 			parent.addChildren(me);
-			return remaining;
+			return end;
+		}
+	}
+
+	/**
+	 * A mismatch of a consumer that runs on cursors, whose expected terminals
+	 * are already recorded on the cursor.
+	 */
+	private static final class Mismatch extends ParseException {
+		private static final long serialVersionUID = 4470268962738937437L;
+
+		Mismatch(int position) {
+			super(String.format("No match at %d", position));
 		}
 	}
 
 	private Parsers() {
 	}
 
+	/**
+	 * Runs consumer on the cursor of input, limited to the end of input. This
+	 * is where a mismatch becomes a ParseException.
+	 */
+	static ParseContext consumeFrom(CursorConsumer consumer, ParseContext input, Node parent) throws ParseException, FatalParseException {
+		if (!Cursor.supports(input))
+			return consumeForeign(consumer, input, parent);
+		final Cursor cursor = Cursor.of(input);
+		final int limit = cursor.enter(input);
+		final int end;
+		try {
+			end = consumer.consume(cursor, input.start(), parent);
+		}
+		finally {
+			cursor.limit(limit);
+		}
+		if (end == CursorConsumer.FAIL)
+			throw new Mismatch(input.start());
+		return cursor.context(end);
+	}
+
+	/**
+	 * Runs consumer over the characters of a context that has no cursor, as a
+	 * parse of its own. Node positions are those of input.
+	 */
+	private static ParseContext consumeForeign(CursorConsumer consumer, ParseContext input, Node parent) throws ParseException, FatalParseException {
+		final ParseContext context = new Contexts(MemoizationPolicy.cached(consumer, Memoization.AUTO)).parseContext(input);
+		return input.splice(consumeFrom(consumer, context, parent).start());
+	}
+
+	/**
+	 * Runs consumer at position, creating a context only for consumers that
+	 * do not run on cursors.
+	 *
+	 * @return The position after the consumed input, or
+	 *         {@link CursorConsumer#FAIL}
+	 */
+	static int consumeAt(Consumer consumer, Cursor cursor, int position, Node parent) throws FatalParseException {
+		// Not unnested by fatal failures, which end the parse
+		cursor.nest(position, 1);
+		final int end;
+		if (consumer instanceof CursorConsumer)
+			end = ((CursorConsumer) consumer).consume(cursor, position, parent);
+		else
+			end = consumeForeignAt(consumer, cursor, position, parent);
+		cursor.unnest(1);
+		return end;
+	}
+
+	private static int consumeForeignAt(Consumer consumer, Cursor cursor, int position, Node parent) throws FatalParseException {
+		try {
+			return consumer.consume(cursor.context(position), parent).start();
+		}
+		catch (Mismatch e) {
+			// Delegated to a consumer that has recorded what it expected
+			return CursorConsumer.FAIL;
+		}
+		catch (ParseException e) {
+			// Reported like a failed terminal, by its message
+			cursor.expected(position, e.getMessage() != null ? e.getMessage() : consumer);
+			return CursorConsumer.FAIL;
+		}
+	}
+
+	/**
+	 * Dispatches to the visitor method matching the kind of consumer.
+	 */
+	static <R> R accept(final Consumer consumer, final ConsumerVisitor<R> visitor) {
+		if (consumer instanceof SequenceParser)
+			return visitor.sequence(consumer, ((SequenceParser) consumer).parsers);
+		if (consumer instanceof AlternativeParser)
+			return visitor.alternative(consumer, ((AlternativeParser) consumer).parsers);
+		if (consumer instanceof RepeatParser) {
+			final RepeatParser p = (RepeatParser) consumer;
+			return visitor.repeat(consumer, p.parser, p.min, p.max);
+		}
+		if (consumer instanceof ExactParser)
+			return visitor.exact(consumer, ((ExactParser) consumer).token);
+		if (consumer instanceof ExactIgnoreCaseParser)
+			return visitor.exactIgnoreCase(consumer, ((ExactIgnoreCaseParser) consumer).token);
+		if (consumer instanceof OperatorParser) {
+			final OperatorParser p = (OperatorParser) consumer;
+			return visitor.operators(consumer, p.operand, OperatorParser.consumers(p.prefix), OperatorParser.consumers(p.suffix));
+		}
+		if (consumer instanceof OneOfParser)
+			return visitor.oneOf(consumer, ((OneOfParser) consumer).tokens);
+		if (consumer instanceof MatchParser) {
+			final MatchParser p = (MatchParser) consumer;
+			return visitor.matches(consumer, p.min, p.max, p.matcher);
+		}
+		if (consumer instanceof ParserReferenceImpl)
+			return visitor.reference(consumer, ((ParserReferenceImpl) consumer).target);
+		if (consumer instanceof LiftTransform)
+			return visitor.wrap(consumer, ((LiftTransform) consumer).parser);
+		if (consumer instanceof LiftAndReplaceAttachmentTransform)
+			return visitor.wrap(consumer, ((LiftAndReplaceAttachmentTransform) consumer).parser);
+		if (consumer instanceof JoinTransform)
+			return visitor.wrap(consumer, ((JoinTransform) consumer).parser);
+		if (consumer instanceof IgnoreTransform)
+			return visitor.ignore(consumer, ((IgnoreTransform) consumer).parser);
+		if (consumer instanceof ReplaceTransform)
+			return visitor.wrap(consumer, ((ReplaceTransform) consumer).parser);
+		if (consumer instanceof Group)
+			return visitor.wrap(consumer, ((Group) consumer).parser);
+		if (consumer instanceof RequireTransform)
+			return visitor.require(consumer, ((RequireTransform) consumer).consumer);
+		if (consumer instanceof InputPreservingParser)
+			return visitor.preserve(consumer, ((InputPreservingParser) consumer).parser);
+		if (consumer instanceof MemoizeTransform)
+			return visitor.memoization(consumer, ((MemoizeTransform) consumer).parser, true);
+		if (consumer instanceof NoMemoTransform)
+			return visitor.memoization(consumer, ((NoMemoTransform) consumer).parser, false);
+		if (consumer instanceof SubParser) {
+			final SubParser p = (SubParser) consumer;
+			return visitor.subparse(consumer, p.scanner, p.parser);
+		}
+		if (consumer instanceof EndOfInputTransform)
+			return visitor.endOfInput(consumer);
+		if (consumer instanceof CutTransform)
+			return visitor.cut(consumer);
+		if (consumer instanceof CommitTransform)
+			return visitor.commit(consumer);
+		if (consumer instanceof Program)
+			return visitor.wrap(consumer, ((Program) consumer).root);
+		if (consumer instanceof Specializer.Specialized)
+			return visitor.wrap(consumer, ((Specializer.Specialized) consumer).root);
+		return visitor.opaque(consumer);
+	}
+
 	private static String join(final String joint, final Node node) {
 		StringBuilder sb = new StringBuilder();
 		join("", joint, node, sb);
@@ -622,8 +1420,8 @@ public final class Parsers {
 			return;
 		Node n = i.next();
 		sb.append(prefix);
-		if (n.value() != null) {
-			sb.append(n.value());
+		if (n.valueSequence() != null) {
+			sb.append(n.valueSequence());
 			join(joint, joint, n, sb);
 		}
 		else {
@@ -632,8 +1430,8 @@ public final class Parsers {
 		while (i.hasNext()) {
 			n = i.next();
 			sb.append(joint);
-			if (n.value() != null) {
-				sb.append(n.value());
+			if (n.valueSequence() != null) {
+				sb.append(n.valueSequence());
 				join(joint, joint, n, sb);
 			}
 			else {
@@ -655,6 +1453,26 @@ public final class Parsers {
 		return new RequireTransform(parser);
 	}
 
+	/**
+	 * Returns a consumer that runs parser with a limit on how deeply
+	 * consumers may call each other. Consumers call each other on the Java
+	 * stack, so parses nesting deeper fail with a {@link FatalParseException}
+	 * instead of overflowing the stack. Without a limit set, parses are
+	 * limited to a depth that fits the default stack size of a thread.
+	 * <p>
+	 * Raise the limit for threads with a larger stack, or use
+	 * {@link #compile(Consumer, int)} for input that may nest without bound.
+	 *
+	 * @param parser The root of the grammar
+	 * @param maxNesting The maximum number of consumers running inside each
+	 *            other, or -1 for no limit
+	 *
+	 * @return The composite consumer
+	 */
+	public static Consumer maxNesting(final Consumer parser, final int maxNesting) {
+		return new NestingTransform(parser, maxNesting);
+	}
+
 	/**
 	 * Returns a parser that creates a node according to the parser
 	 * parameter except that all characters accepted by the strip matcher
@@ -779,18 +1597,60 @@ public final class Parsers {
 	}
 
 	/**
-	 * Returns a parser matches exactly one of the provided strings.
+	 * Returns a parser that matches the provided string ignoring case. Case
+	 * is folded per code point, so characters outside the BMP are folded
+	 * too. The value of the node is the matched input.
+	 * <p>
+	 * @param token The string to match
+	 *
+	 * @return The parser
+	 */
+	public static Parser exactIgnoreCase(final String token) {
+		if (token.isEmpty())
+			throw new IllegalArgumentException();
+
+		return new ExactIgnoreCaseParser(null, token);
+	}
+
+	/**
+	 * Returns a parser matches exactly one of the provided strings. Like an
+	 * alternative of exact parsers, the first of the strings that matches is
+	 * chosen, but all of them are matched in a single pass over the input.
 	 * <p>
 	 * @param alternatives The strings to match
 	 *
 	 * @return The parser
 	 */
 	public static Parser oneOf(final String... alternatives) {
-		Parser[] parsers = new Parser[alternatives.length];
-		for (int i = 0; i < alternatives.length; i++)
-			parsers[i] = exact(alternatives[i]);
+		if (alternatives.length == 0)
+			throw new IllegalArgumentException("At least one parser required as argument");
+		return OneOfParser.of(alternatives);
+	}
 
-		return lalternative(parsers);
+	/**
+	 * Returns a consumer that memoizes the result of parser at every
+	 * position it is invoked, regardless of the {@link Memoization} mode of
+	 * the parse.
+	 * <p>
+	 * @param parser The parser to memoize
+	 *
+	 * @return The memoizing consumer
+	 */
+	public static Consumer memoize(final Consumer parser) {
+		return new MemoizeTransform(parser);
+	}
+
+	/**
+	 * Returns a consumer that excludes parser from memoization, regardless
+	 * of the {@link Memoization} mode of the parse. Useful for cheap
+	 * deterministic parts of a grammar.
+	 * <p>
+	 * @param parser The parser to exclude from memoization
+	 *
+	 * @return The consumer
+	 */
+	public static Consumer noMemo(final Consumer parser) {
+		return new NoMemoTransform(parser);
 	}
 
 	public static Transformer ignore(final CharacterMatcher matcher) {
@@ -805,6 +1665,11 @@ public final class Parsers {
 		return skip(matches(matcher));
 	}
 
+	/**
+	 * Returns a transformer that consumes what parser consumes without adding
+	 * any nodes. The parser is given {@link Node#discard()} as parent, so
+	 * consumers that honor it build no nodes at all.
+	 */
 	public static Transformer skip(final Consumer parser) {
 		return new IgnoreTransform(parser);
 	}
@@ -929,6 +1794,29 @@ public final class Parsers {
 		return lift(alternative(parsers));
 	}
 
+	/**
+	 * Returns a parser of expressions of operands and operators, eg.
+	 * <code>-a + b * c!</code>. Operators are parsed by precedence climbing,
+	 * so an operand is not wrapped in a node per precedence level, and the
+	 * node of each operator has its operands as children. Operators of the
+	 * same kind are tried in the order given.
+	 * <p>
+	 * An attachment given to the returned parser wraps the expression in a
+	 * node of its own.
+	 *
+	 * @param operand The operands, eg. literals and parenthesized expressions
+	 * @param operators The operators, see {@link Operator}
+	 *
+	 * @return The parser
+	 */
+	public static Parser operators(final Consumer operand, final Operator... operators) {
+		final List<Operator> prefix = new ArrayList<>();
+		final List<Operator> suffix = new ArrayList<>();
+		for (final Operator o : operators)
+			(o.kind == Operator.Kind.PREFIX ? prefix : suffix).add(o);
+		return new OperatorParser(null, operand, prefix.toArray(new Operator[prefix.size()]), suffix.toArray(new Operator[suffix.size()]));
+	}
+
 	public static Parser alternative(final Consumer... parsers) {
 		if (parsers.length == 0)
 			throw new IllegalArgumentException("At least one parser required as argument");
@@ -939,6 +1827,42 @@ public final class Parsers {
 		return new EndOfInputTransform();
 	}
 
+	/**
+	 * Returns a transformer that consumes nothing and declares that the parse
+	 * never backtracks to before the current position, so memoized results
+	 * for earlier positions can be released. Typically placed between
+	 * top-level records of long inputs.
+	 * <p>
+	 * Backtracking past a commit is still handled correctly, but the
+	 * released results will have to be recomputed.
+	 *
+	 * @return The transformer
+	 */
+	public static Transformer commit() {
+		return new CommitTransform();
+	}
+
+	/**
+	 * Returns a PEG-style cut. Once a cut has been passed, the innermost
+	 * enclosing alternative (or repetition) is committed to the current
+	 * branch (or iteration): if it fails, the alternative (or repetition)
+	 * fails without trying the remaining branches.
+	 * <p>
+	 * Example:
+	 * <p>
+	 * <code>alternative(sequence(exact("if"), cut(), condition, block), ...)</code>
+	 * <p>
+	 * Cuts do not reach through lookahead ({@link #peek(Consumer)}) or
+	 * subparsers. If no backtracking point remains after the cut, the parse is
+	 * committed at the cut as with {@link #commit()}. Consumers containing a cut
+	 * that is not enclosed by an alternative or repetition are never memoized.
+	 *
+	 * @return The transformer
+	 */
+	public static Transformer cut() {
+		return new CutTransform();
+	}
+
 	public static Parser terminal(Consumer p) {
 		return lsequence(p, endOfInput());
 	}
@@ -964,19 +1888,326 @@ public final class Parsers {
 		return new SubParser(scanner, parser);
 	}
 
+	/**
+	 * Compiles a grammar into a flat instruction program that is run by a
+	 * single interpreter loop, instead of by calls through the consumer
+	 * graph. The compiled consumer produces the same nodes, and reports the
+	 * same failures, as parser.
+	 * <p>
+	 * References must have their targets set before compiling. Consumers not
+	 * provided by this class are run as they are.
+	 *
+	 * @param parser The grammar
+	 *
+	 * @return A consumer equivalent to parser
+	 */
+	public static Consumer compile(final Consumer parser) {
+		return GrammarCompiler.compile(parser);
+	}
+
+	/**
+	 * Compiles a grammar as {@link #compile(Consumer)}, limiting how deeply
+	 * the input may nest. The compiled consumer keeps its stack on the heap,
+	 * so unlike parser it is not limited to the nesting that fits the Java
+	 * stack (see {@link #maxNesting(Consumer, int)}); the limit instead bounds
+	 * the memory a parse may use.
+	 *
+	 * @param parser The grammar
+	 * @param maxDepth The maximum number of nested rule calls (references,
+	 *            and consumers used in more than one place), or -1 for no
+	 *            limit. Parses nesting deeper fail with a
+	 *            {@link FatalParseException}.
+	 *
+	 * @return A consumer equivalent to parser
+	 */
+	public static Consumer compile(final Consumer parser, final int maxDepth) {
+		return GrammarCompiler.compile(parser).maxDepth(maxDepth);
+	}
+
+	/**
+	 * Specializes a grammar into method handles that the JVM compiles into
+	 * code for this grammar alone, with the consumers and character matchers
+	 * inlined into each other instead of called through interfaces. The
+	 * specialized consumer produces the same nodes, and reports the same
+	 * failures, as parser.
+	 * <p>
+	 * Specializing pays off for grammars that parse a lot of input over the
+	 * life of the process, as the JVM only compiles the handles once they have
+	 * run for a while. References must have their targets set before
+	 * specializing. Consumers not provided by this class are run as they are.
+	 *
+	 * @param parser The grammar
+	 *
+	 * @return A consumer equivalent to parser
+	 */
+	public static Consumer specialize(final Consumer parser) {
+		return Specializer.specialize(parser);
+	}
+
+	/**
+	 * Prepares a grammar for parsing many inputs, possibly from several
+	 * threads at once, see {@link Grammar}. The grammar memoizes with
+	 * {@link Memoization#AUTO}, which unlike {@link Memoization#ALL} does not
+	 * guarantee linear time.
+	 *
+	 * @param parser The root of the grammar
+	 *
+	 * @return The grammar
+	 */
+	public static Grammar grammar(Consumer parser) {
+		return grammar(parser, Memoization.AUTO);
+	}
+
+	public static Grammar grammar(Consumer parser, Memoization memoization) {
+		return new Grammar(parser, memoization);
+	}
+
+	/**
+	 * Parses input with {@link Memoization#AUTO}, which unlike
+	 * {@link Memoization#ALL} does not guarantee linear time.
+	 */
 	public static Node parse(Consumer parser, CharSequence input) throws ParseException, FatalParseException {
-		final ParseContext context = new Contexts().parseContext(input.toString());
+		return parse(parser, input, Memoization.AUTO);
+	}
+
+	public static Node parse(Consumer parser, CharSequence input, Memoization memoization) throws ParseException, FatalParseException {
+		return parse(parser, input, memoization, -1);
+	}
+
+	/**
+	 * Parses input, keeping memoized results only for the lookbehind
+	 * positions behind the furthest position memoized so far (and after the
+	 * last {@link #commit()}), which bounds memory use to the backtracking
+	 * depth of the grammar rather than the input size.
+	 *
+	 * @param parser The parser
+	 * @param input The input, which is read in place and must not change during
+	 *        the parse. The characters remaining in a CharBuffer are parsed.
+	 * @param memoization The memoization mode
+	 * @param lookbehind The memo window size, or -1 for no window
+	 *
+	 * @return The parsed node
+	 */
+	public static Node parse(Consumer parser, CharSequence input, Memoization memoization, int lookbehind) throws ParseException, FatalParseException {
+		final ParseContext context = new Contexts(MemoizationPolicy.cached(parser, memoization), lookbehind).parseContext(input);
+		return parse(parser, context);
+	}
+
+	/**
+	 * Parses input with {@link Memoization#AUTO}, see
+	 * {@link #parse(Consumer, CharSequence)}.
+	 */
+	public static Node parse(Consumer parser, Reader input) throws ParseException, FatalParseException, IOException {
+		return parse(parser, input, Memoization.AUTO);
+	}
+
+	public static Node parse(Consumer parser, Reader input, Memoization memoization) throws ParseException, FatalParseException, IOException {
+		return parse(parser, input, memoization, -1);
+	}
+
+	/**
+	 * Parses input as it is read, without reading all of it into memory first.
+	 * Input is kept only as far back as the parse may backtrack, so memory use
+	 * is bounded by the backtracking depth of the grammar (and, unless a
+	 * lookbehind is given or the grammar commits, the memo table).
+	 *
+	 * @param parser The parser
+	 * @param input The input, which is not closed
+	 * @param memoization The memoization mode
+	 * @param lookbehind The memo window size, or -1 for no window
+	 *
+	 * @return The parsed node
+	 */
+	public static Node parse(Consumer parser, Reader input, Memoization memoization, int lookbehind) throws ParseException, FatalParseException, IOException {
+		final ParseContext context = new Contexts(MemoizationPolicy.cached(parser, memoization), lookbehind).parseContext(input);
+		try {
+			return parse(parser, context);
+		}
+		catch (InputException e) {
+			throw e.getCause();
+		}
+	}
+
+	public static Node parse(Consumer parser, ReadableByteChannel input, Charset charset) throws ParseException, FatalParseException, IOException {
+		return parse(parser, Channels.newReader(input, charset.newDecoder(), -1));
+	}
+
+	/**
+	 * Parses input with {@link Memoization#AUTO}, see
+	 * {@link #parse(Consumer, CharSequence)}.
+	 */
+	public static Node parse(Consumer parser, ByteBuffer input, Charset charset) throws ParseException, FatalParseException {
+		return parse(parser, input, charset, Memoization.AUTO);
+	}
+
+	/**
+	 * Parses the remaining bytes of input (eg. a memory-mapped file) in place,
+	 * without decoding them. Positions are byte offsets and every byte is
+	 * matched as the character with the same value, so ASCII tokens and
+	 * matchers work unchanged while each byte of a multi-byte character is
+	 * seen as a character in 0x80-0xff (see
+	 * {@link CharacterMatchers#ascii(CharacterMatcher)}). Only node values
+	 * are decoded.
+	 *
+	 * @param parser The parser
+	 * @param input The input
+	 * @param charset The encoding of input, which must encode ASCII as single
+	 *        bytes (eg. UTF-8 or ISO-8859-1)
+	 * @param memoization The memoization mode
+	 *
+	 * @return The parsed node
+	 */
+	public static Node parse(Consumer parser, ByteBuffer input, Charset charset, Memoization memoization) throws ParseException, FatalParseException {
+		final ParseContext context = new Contexts(MemoizationPolicy.cached(parser, memoization)).parseContext(input, charset);
+		return parse(parser, context);
+	}
+
+	/**
+	 * Parses the records of input (eg. the lines of JSON Lines) in parallel,
+	 * see {@link Grammar#parseRecords(CharSequence, CharacterMatcher, java.util.concurrent.ForkJoinPool)}.
+	 * <p>
+	 * Each call starts from a new {@link Grammar}, so the workers do not reuse
+	 * their parse state from earlier calls. Callers parsing many inputs should
+	 * hold a grammar of their own.
+	 *
+	 * @param parser The parser of a record
+	 * @param input The input
+	 * @param boundary The characters separating records
+	 *
+	 * @return The nodes of the records, in order
+	 */
+	public static List<Node> parseRecords(Consumer parser, CharSequence input, CharacterMatcher boundary) throws ParseException, FatalParseException {
+		return grammar(parser).parseRecords(input, boundary);
+	}
+
+	static Node parse(Consumer parser, ParseContext context) throws ParseException, FatalParseException {
 		final Node root = new Node(null);
-		final ParseContext remaining = parser.consume(context, root);
-		if (remaining.length() > 0)
-			throw new ParseException("Remaining characters: " + remaining.toString());
+		final int end = consume(parser, context, root).start();
+		final Cursor cursor = Cursor.of(context);
+		// Remaining input up to the end of context, which may end before the source
+		final int limit = cursor.enter(context);
+		try {
+			if (cursor.available(end, 1) > 0)
+				throw failure(cursor, end, null);
+		}
+		finally {
+			cursor.limit(limit);
+		}
 		return root.firstChild();
 	}
 
+	private static ParseContext consume(Consumer parser, ParseContext context, Node root) throws ParseException, FatalParseException {
+		try {
+			return parser.consume(context, root);
+		}
+		catch (ParseException e) {
+			if (Cursor.of(context).farthest() < 0)
+				throw e;
+			throw failure(Cursor.of(context), -1, e);
+		}
+	}
+
+	/**
+	 * Reports the farthest position a terminal failed at, and the terminals
+	 * that failed there. Input remaining after a match is reported as
+	 * expecting the end of input, unless terminals failed further in.
+	 *
+	 * @param remaining The start of remaining input, or -1
+	 */
+	private static ParseException failure(Cursor cursor, int remaining, ParseException cause) {
+		return failure(cursor, Math.max(cursor.farthest(), remaining), remaining, cause);
+	}
+
+	/**
+	 * The error for a require that failed at position, caused by the farthest
+	 * failure of the parse so far.
+	 */
+	static FatalParseException missing(Cursor cursor, int position) {
+		final ParseException cause = failure(cursor, Math.max(cursor.farthest(), position), -1, null);
+		return new FatalParseException(String.format("Required input missing at %d: %s", position, cause.getMessage()), cause);
+	}
+
+	private static ParseException failure(Cursor cursor, int position, int remaining, ParseException cause) {
+		final Set<String> expected = new LinkedHashSet<>();
+		if (cursor.farthest() == position) {
+			for (final Object terminal : cursor.expected()) {
+				if (terminal instanceof Object[]) {
+					for (final Object t : (Object[]) terminal)
+						expected.add(describe(t));
+				}
+				else {
+					expected.add(describe(terminal));
+				}
+			}
+		}
+		if (remaining == position)
+			expected.add(END_OF_INPUT);
+
+		final int[] location = cursor.location(position);
+		final StringBuilder sb = new StringBuilder("Unexpected ");
+		if (location == null)
+			sb.append("input at position ").append(position);
+		else if (cursor.available(position, 1) < 1)
+			sb.append(END_OF_INPUT).append(" at line ").append(location[0]).append(", column ").append(location[1]);
+		else
+			sb.append('\'').append(cursor.charAt(position)).append("' at line ").append(location[0]).append(", column ").append(location[1]);
+		final Iterator<String> i = expected.iterator();
+		if (i.hasNext())
+			sb.append(expected.size() > 1 ? ", expected one of " : ", expected ").append(i.next());
+		while (i.hasNext())
+			sb.append(", ").append(i.next());
+
+		final ParseException e = location == null ?
+		    new ParseException(sb.toString(), position, -1, -1, new ArrayList<>(expected)) :
+		    new ParseException(sb.toString(), position, location[0], location[1], new ArrayList<>(expected));
+		if (cause != null)
+			e.initCause(cause);
+		return e;
+	}
+
+	private static String describe(Object terminal) {
+		if (!(terminal instanceof Consumer))
+			return String.valueOf(terminal);
+		return accept((Consumer) terminal, new DefaultConsumerVisitor<String>() {
+			@Override
+			protected String otherwise(Consumer self) {
+				return self.toString();
+			}
+
+			@Override
+			public String exact(Consumer self, String token) {
+				return "\"" + token + "\"";
+			}
+
+			@Override
+			public String exactIgnoreCase(Consumer self, String token) {
+				return "\"" + token + "\" (ignoring case)";
+			}
+
+			@Override
+			public String matches(Consumer self, int min, int max, CharacterMatcher matcher) {
+				return matcher.toString();
+			}
+
+			@Override
+			public String endOfInput(Consumer self) {
+				return END_OF_INPUT;
+			}
+		});
+	}
+
+	/**
+	 * Parses the start of input with {@link Memoization#AUTO}, which unlike
+	 * {@link Memoization#ALL} does not guarantee linear time.
+	 */
 	public static Node sloppyParse(Consumer parser, CharSequence input) throws ParseException, FatalParseException {
-		final ParseContext context = new Contexts().parseContext(input.toString());
+		return sloppyParse(parser, input, Memoization.AUTO);
+	}
+
+	public static Node sloppyParse(Consumer parser, CharSequence input, Memoization memoization) throws ParseException, FatalParseException {
+		final ParseContext context = new Contexts(MemoizationPolicy.cached(parser, memoization)).parseContext(input);
 		final Node root = new Node(null);
-		parser.consume(context, root);
+		consume(parser, context, root);
 		return root.firstChild();
 	}
 }
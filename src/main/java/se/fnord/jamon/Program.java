@@ -0,0 +1,511 @@
+package se.fnord.jamon;
+
+import java.util.Arrays;
+
+import se.fnord.jamon.internal.Cursor;
+
+/**
+ * A grammar lowered into a flat instruction program by
+ * {@link GrammarCompiler}, see {@link Parsers#compile(Consumer)}.
+ * <p>
+ * Instructions are an opcode followed by operands in a single int array.
+ * Backtracking points, calls, lookahead and node building consumers push frames
+ * onto an explicit stack, and a failure unwinds the stack to the innermost
+ * frame that can resume the parse. Nodes are built on a separate capture stack
+ * and are only added to their parent when complete, so unwinding just drops
+ * the captures above the resumed frame.
+ * <p>
+ * As the stack is on the heap, the nesting of the input is only bounded by
+ * memory, or by the maximum depth of rule calls if one is set.
+ */
+final class Program implements CursorConsumer {
+	/** token, builder: match a token */
+	static final int EXACT = 0;
+	/** token, builder: match a token and add its node */
+	static final int EXACT_NODE = 1;
+	/** matcher, min, max, builder: match characters */
+	static final int SET = 2;
+	/** matcher, min, max, builder: match characters and add their node */
+	static final int SET_NODE = 3;
+	/** builder, skip: reuse a memoized result or push a memo frame */
+	static final int MEMO = 4;
+	/** builder, skip: as MEMO, without nodes */
+	static final int MEMO_DISCARD = 5;
+	/** open a node at the current position */
+	static final int OPEN = 6;
+	/** builder: complete, memoize and add the open node */
+	static final int CLOSE = 7;
+	/** builder: pop the memo frame of a consumer that built no node */
+	static final int UNMEMO = 8;
+	/** next: enter an alternative, resuming at next (or -1 for none) on failure */
+	static final int ALT = 9;
+	/** next: start the branch of an alternative that resumes at next on failure */
+	static final int RETRY = 10;
+	/** end: leave an alternative after a matching branch */
+	static final int ALT_END = 11;
+	/** done: enter a repetition that resumes at done on failure */
+	static final int REP = 12;
+	/** min, max, done: start an iteration, or go to done at max */
+	static final int LOOP = 13;
+	/** head: count an iteration and go to head */
+	static final int AGAIN = 14;
+	/** min: leave a repetition */
+	static final int REP_END = 15;
+	/** enter a lookahead */
+	static final int PIN = 16;
+	/** leave a lookahead, returning to its start */
+	static final int UNPIN = 17;
+	/** enter a subparser */
+	static final int SUB = 18;
+	/** limit the input to the scanned range, returning to the start */
+	static final int LIMIT = 19;
+	/** leave a subparser */
+	static final int UNSUB = 20;
+	/** make failures fatal */
+	static final int REQUIRE = 21;
+	/** stop making failures fatal */
+	static final int UNREQUIRE = 22;
+	/** rule: call a rule */
+	static final int CALL = 23;
+	/** return from a rule */
+	static final int RETURN = 24;
+	/** consumer, discard: run a consumer that is not compiled */
+	static final int INVOKE = 25;
+	/** consumer: match the end of input */
+	static final int END_OF_INPUT = 26;
+	static final int COMMIT = 27;
+	static final int CUT = 28;
+	/** stop with a match */
+	static final int END = 29;
+
+	private static final int ALT_FRAME = 0;
+	private static final int REP_FRAME = 1;
+	private static final int MEMO_FRAME = 2;
+	private static final int CALL_FRAME = 3;
+	private static final int PIN_FRAME = 4;
+	private static final int SUB_FRAME = 5;
+	private static final int REQUIRE_FRAME = 6;
+
+	// Frame layout
+	private static final int KIND = 0;
+	private static final int POS = 1;
+	private static final int LABEL = 2;
+	private static final int CAPS = 3;
+	private static final int HANDLE = 4;
+	private static final int AUX = 5;
+	private static final int FRAME = 6;
+
+	private static final int UNRESOLVED = -2;
+
+	final Consumer root;
+	private final int[] code;
+	private final int[] rules;
+	private final String[] tokens;
+	private final CharacterMatcher[] matchers;
+	private final Consumer[] consumers;
+	private final int captureEntry;
+	private final int discardEntry;
+	// The maximum depth of rule calls, or -1
+	private final int maxDepth;
+
+	Program(Consumer root, int[] code, int[] rules, String[] tokens, CharacterMatcher[] matchers, Consumer[] consumers, int captureEntry, int discardEntry, int maxDepth) {
+		this.root = root;
+		this.code = code;
+		this.rules = rules;
+		this.tokens = tokens;
+		this.matchers = matchers;
+		this.consumers = consumers;
+		this.captureEntry = captureEntry;
+		this.discardEntry = discardEntry;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * @return This program, limited to maxDepth nested rule calls (or -1 for
+	 *         no limit)
+	 */
+	Program maxDepth(int maxDepth) {
+		return new Program(root, code, rules, tokens, matchers, consumers, captureEntry, discardEntry, maxDepth);
+	}
+
+	@Override
+	public String toString() {
+		return "compiled[" + root + "]";
+	}
+
+	@Override
+	public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+		return Parsers.consumeFrom(this, input, parent);
+	}
+
+	@Override
+	public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+		return new Run(cursor).run(parent.discards() ? discardEntry : captureEntry, position, parent);
+	}
+
+	private final class Run {
+		private final Cursor cursor;
+		private final int[] ids;
+		private int[] frames = new int[FRAME * 16];
+		private int sp;
+		private Node[] captures = new Node[16];
+		private int[] starts = new int[16];
+		private int caps;
+		private int pos;
+		private int depth;
+
+		Run(Cursor cursor) {
+			this.cursor = cursor;
+			this.ids = new int[consumers.length];
+			Arrays.fill(ids, UNRESOLVED);
+		}
+
+		private int id(int consumer) {
+			int id = ids[consumer];
+			if (id == UNRESOLVED)
+				ids[consumer] = id = cursor.memoId(consumers[consumer]);
+			return id;
+		}
+
+		private NodeBuilder builder(int consumer) {
+			return (NodeBuilder) consumers[consumer];
+		}
+
+		private Node top() {
+			return captures[caps - 1];
+		}
+
+		private int push(int kind, int label, int handle) {
+			if (sp == frames.length)
+				frames = Arrays.copyOf(frames, sp << 1);
+			final int f = sp;
+			frames[f + KIND] = kind;
+			frames[f + POS] = pos;
+			frames[f + LABEL] = label;
+			frames[f + CAPS] = caps;
+			frames[f + HANDLE] = handle;
+			frames[f + AUX] = 0;
+			sp += FRAME;
+			return f;
+		}
+
+		private void open() {
+			if (caps == captures.length) {
+				captures = Arrays.copyOf(captures, caps << 1);
+				starts = Arrays.copyOf(starts, caps << 1);
+			}
+			captures[caps] = new Node(null);
+			starts[caps] = pos;
+			caps++;
+		}
+
+		private void dropCaptures(int depth) {
+			while (caps > depth)
+				captures[--caps] = null;
+		}
+
+		/**
+		 * Unwinds the stack to the innermost frame that can resume.
+		 *
+		 * @return The instruction to resume at, or {@link #FAIL} if none can
+		 */
+		private int fail(int base) throws FatalParseException {
+			while (sp > base) {
+				final int f = sp - FRAME;
+				switch (frames[f + KIND]) {
+				case ALT_FRAME:
+					if (frames[f + LABEL] >= 0 && !cursor.isCut(frames[f + HANDLE])) {
+						pos = frames[f + POS];
+						dropCaptures(frames[f + CAPS]);
+						return frames[f + LABEL];
+					}
+					cursor.exitChoice(frames[f + HANDLE]);
+					break;
+				case REP_FRAME:
+					if (!cursor.isCut(frames[f + HANDLE])) {
+						pos = frames[f + POS];
+						dropCaptures(frames[f + CAPS]);
+						return frames[f + LABEL];
+					}
+					cursor.exitChoice(frames[f + HANDLE]);
+					break;
+				case MEMO_FRAME:
+					cursor.memoize(frames[f + HANDLE], frames[f + POS], null);
+					break;
+				case PIN_FRAME:
+					cursor.exitChoice(frames[f + HANDLE]);
+					break;
+				case SUB_FRAME:
+					if (frames[f + LABEL] != 0)
+						cursor.limit(frames[f + AUX]);
+					cursor.exitChoice(frames[f + HANDLE]);
+					break;
+				case REQUIRE_FRAME:
+					sp = f;
+					throw Parsers.missing(cursor, frames[f + POS]);
+				case CALL_FRAME:
+					depth--;
+					break;
+				default:
+					break;
+				}
+				sp = f;
+			}
+			return FAIL;
+		}
+
+		/**
+		 * Releases the choices and limits of frames left by an exception.
+		 */
+		private void abandon(int base) {
+			while (sp > base) {
+				final int f = sp - FRAME;
+				switch (frames[f + KIND]) {
+				case SUB_FRAME:
+					if (frames[f + LABEL] != 0)
+						cursor.limit(frames[f + AUX]);
+					cursor.exitChoice(frames[f + HANDLE]);
+					break;
+				case ALT_FRAME:
+				case REP_FRAME:
+				case PIN_FRAME:
+					cursor.exitChoice(frames[f + HANDLE]);
+					break;
+				case CALL_FRAME:
+					depth--;
+					break;
+				default:
+					break;
+				}
+				sp = f;
+			}
+		}
+
+		int run(int ip, int position, Node parent) throws FatalParseException {
+			final int[] code = Program.this.code;
+			final int base = sp;
+			pos = position;
+			captures[caps++] = parent;
+			try {
+				for (;;) {
+					if (ip == FAIL)
+						return FAIL;
+					switch (code[ip]) {
+					case EXACT:
+					case EXACT_NODE: {
+						final String token = tokens[code[ip + 1]];
+						if (!cursor.regionMatches(pos, token)) {
+							cursor.expected(pos, consumers[code[ip + 2]]);
+							ip = fail(base);
+							break;
+						}
+						final int length = token.length();
+						if (code[ip] == EXACT_NODE)
+							top().addChildren(builder(code[ip + 2]).leaf(cursor, pos, pos + length));
+						ip += 3;
+						pos += length;
+						break;
+					}
+					case SET:
+					case SET_NODE: {
+						final CharacterMatcher matcher = matchers[code[ip + 1]];
+						final int min = code[ip + 2];
+						final int i = cursor.scan(pos, code[ip + 3], matcher);
+						if (i < min) {
+							cursor.expected(pos + i, consumers[code[ip + 4]]);
+							ip = fail(base);
+							break;
+						}
+						if (code[ip] == SET_NODE)
+							top().addChildren(builder(code[ip + 4]).leaf(cursor, pos, pos + i));
+						ip += 5;
+						pos += i;
+						break;
+					}
+					case MEMO:
+					case MEMO_DISCARD: {
+						final int id = id(code[ip + 1]);
+						final Node n = cursor.memoized(id, pos);
+						if (n == Cursor.MISMATCH) {
+							ip = fail(base);
+						}
+						else if (n != null) {
+							if (code[ip] == MEMO)
+								builder(code[ip + 1]).apply(top(), n);
+							pos = n.end();
+							ip = code[ip + 2];
+						}
+						else {
+							if (id >= 0)
+								push(MEMO_FRAME, 0, id);
+							ip += 3;
+						}
+						break;
+					}
+					case OPEN:
+						open();
+						ip += 1;
+						break;
+					case CLOSE: {
+						final NodeBuilder builder = builder(code[ip + 1]);
+						final Node me = captures[--caps];
+						captures[caps] = null;
+						me.start(starts[caps]);
+						me.end(pos);
+						builder.finish(me);
+						final int id = id(code[ip + 1]);
+						if (id >= 0) {
+							sp -= FRAME;
+							cursor.memoize(id, starts[caps], me);
+						}
+						builder.apply(top(), me);
+						ip += 2;
+						break;
+					}
+					case UNMEMO:
+						if (id(code[ip + 1]) >= 0)
+							sp -= FRAME;
+						ip += 2;
+						break;
+					case ALT: {
+						final int f = push(ALT_FRAME, code[ip + 1], cursor.enterChoice(true, pos));
+						if (code[ip + 1] < 0)
+							cursor.armChoice(frames[f + HANDLE], false, pos);
+						ip += 2;
+						break;
+					}
+					case RETRY: {
+						final int f = sp - FRAME;
+						frames[f + LABEL] = code[ip + 1];
+						if (code[ip + 1] < 0)
+							cursor.armChoice(frames[f + HANDLE], false, pos);
+						ip += 2;
+						break;
+					}
+					case ALT_END:
+						sp -= FRAME;
+						cursor.exitChoice(frames[sp + HANDLE]);
+						ip = code[ip + 1];
+						break;
+					case REP:
+						push(REP_FRAME, code[ip + 1], cursor.enterChoice(true, pos));
+						ip += 2;
+						break;
+					case LOOP: {
+						final int f = sp - FRAME;
+						final int count = frames[f + AUX];
+						if (code[ip + 2] != -1 && count >= code[ip + 2]) {
+							ip = code[ip + 3];
+							break;
+						}
+						cursor.armChoice(frames[f + HANDLE], count >= code[ip + 1], pos);
+						frames[f + POS] = pos;
+						frames[f + CAPS] = caps;
+						ip += 4;
+						break;
+					}
+					case AGAIN:
+						frames[sp - FRAME + AUX]++;
+						ip = code[ip + 1];
+						break;
+					case REP_END: {
+						sp -= FRAME;
+						cursor.exitChoice(frames[sp + HANDLE]);
+						if (frames[sp + AUX] < code[ip + 1])
+							ip = fail(base);
+						else
+							ip += 2;
+						break;
+					}
+					case PIN:
+						push(PIN_FRAME, 0, cursor.enterChoice(false, pos));
+						ip += 1;
+						break;
+					case UNPIN:
+						sp -= FRAME;
+						cursor.exitChoice(frames[sp + HANDLE]);
+						pos = frames[sp + POS];
+						ip += 1;
+						break;
+					case SUB:
+						push(SUB_FRAME, 0, cursor.enterChoice(false, pos));
+						ip += 1;
+						break;
+					case LIMIT: {
+						final int f = sp - FRAME;
+						frames[f + AUX] = cursor.limit(pos);
+						frames[f + LABEL] = 1;
+						pos = frames[f + POS];
+						ip += 1;
+						break;
+					}
+					case UNSUB:
+						sp -= FRAME;
+						cursor.limit(frames[sp + AUX]);
+						cursor.exitChoice(frames[sp + HANDLE]);
+						ip += 1;
+						break;
+					case REQUIRE:
+						push(REQUIRE_FRAME, 0, 0);
+						ip += 1;
+						break;
+					case UNREQUIRE:
+						sp -= FRAME;
+						ip += 1;
+						break;
+					case CALL:
+						if (depth == maxDepth)
+							throw new FatalParseException(String.format("Input nested deeper than %d rules at %d", maxDepth, pos));
+						depth++;
+						push(CALL_FRAME, ip + 2, 0);
+						ip = rules[code[ip + 1]];
+						break;
+					case RETURN:
+						depth--;
+						sp -= FRAME;
+						ip = frames[sp + LABEL];
+						break;
+					case INVOKE: {
+						final Node target = code[ip + 2] != 0 ? Node.discard() : top();
+						final int end = Parsers.consumeAt(consumers[code[ip + 1]], cursor, pos, target);
+						if (end == FAIL) {
+							ip = fail(base);
+						}
+						else {
+							pos = end;
+							ip += 3;
+						}
+						break;
+					}
+					case END_OF_INPUT:
+						if (cursor.available(pos, 1) > 0) {
+							cursor.expected(pos, consumers[code[ip + 1]]);
+							ip = fail(base);
+						}
+						else {
+							ip += 2;
+						}
+						break;
+					case COMMIT:
+						cursor.commit(pos);
+						ip += 1;
+						break;
+					case CUT:
+						cursor.cut(pos);
+						ip += 1;
+						break;
+					case END:
+						return pos;
+					default:
+						throw new IllegalStateException("Invalid instruction " + code[ip] + " at " + ip);
+					}
+				}
+			}
+			finally {
+				if (sp > base)
+					abandon(base);
+				dropCaptures(0);
+			}
+		}
+	}
+}
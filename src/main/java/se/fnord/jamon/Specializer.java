@@ -0,0 +1,526 @@
+package se.fnord.jamon;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.fnord.jamon.internal.Cursor;
+
+/**
+ * Builds a tree of method handles from a consumer graph, see
+ * {@link Parsers#specialize(Consumer)}.
+ * <p>
+ * Every consumer becomes a handle of type (Cursor, int, Node)int that returns
+ * the position after its match or {@link CursorConsumer#FAIL}. The handles are static
+ * methods with the grammar (child handles, tokens, matchers and builders)
+ * bound as leading arguments, so once the JVM customizes a handle to its bound
+ * values the whole grammar is compiled as one family of methods with every
+ * child call and {@link CharacterMatcher} check inlined, instead of being
+ * dispatched through the Consumer interface. References are linked through
+ * call sites, which the JVM treats as constant too.
+ */
+final class Specializer {
+	private static final int FAIL = CursorConsumer.FAIL;
+
+	private static final MethodType CONSUMER = MethodType.methodType(int.class, Cursor.class, int.class, Node.class);
+	private static final MethodType BRANCH = CONSUMER.appendParameterTypes(int.class);
+
+	private static final MethodHandle EMPTY;
+	private static final MethodHandle SEQUENCE;
+	private static final MethodHandle ALTERNATIVE;
+	private static final MethodHandle BRANCH_NEXT;
+	private static final MethodHandle BRANCH_LAST;
+	private static final MethodHandle REPEAT;
+	private static final MethodHandle NODE;
+	private static final MethodHandle RECOGNIZE;
+	private static final MethodHandle IGNORE;
+	private static final MethodHandle REQUIRE;
+	private static final MethodHandle PRESERVE;
+	private static final MethodHandle SUBPARSE;
+	private static final MethodHandle EXACT;
+	private static final MethodHandle EXACT_CHAR;
+	private static final MethodHandle MATCHES;
+	private static final MethodHandle END_OF_INPUT;
+	private static final MethodHandle CUT;
+	private static final MethodHandle COMMIT;
+	private static final MethodHandle INVOKE;
+	private static final MethodHandle CALL;
+
+	static {
+		try {
+			EMPTY = find("empty", CONSUMER);
+			SEQUENCE = find("sequence", CONSUMER.insertParameterTypes(0, MethodHandle.class, MethodHandle.class));
+			ALTERNATIVE = find("alternative", CONSUMER.insertParameterTypes(0, MethodHandle.class));
+			BRANCH_NEXT = find("branch", BRANCH.insertParameterTypes(0, MethodHandle.class, MethodHandle.class));
+			BRANCH_LAST = find("lastBranch", BRANCH.insertParameterTypes(0, MethodHandle.class));
+			REPEAT = find("repeat", CONSUMER.insertParameterTypes(0, MethodHandle.class, int.class, int.class));
+			NODE = find("node", CONSUMER.insertParameterTypes(0, NodeBuilder.class, Consumer.class, MethodHandle.class));
+			RECOGNIZE = find("recognize", CONSUMER.insertParameterTypes(0, Consumer.class, MethodHandle.class));
+			IGNORE = find("ignore", CONSUMER.insertParameterTypes(0, MethodHandle.class));
+			REQUIRE = find("require", CONSUMER.insertParameterTypes(0, MethodHandle.class));
+			PRESERVE = find("preserve", CONSUMER.insertParameterTypes(0, MethodHandle.class));
+			SUBPARSE = find("subparse", CONSUMER.insertParameterTypes(0, MethodHandle.class, MethodHandle.class));
+			EXACT = find("exact", CONSUMER.insertParameterTypes(0, String.class, Consumer.class, NodeBuilder.class));
+			EXACT_CHAR = find("exactChar", CONSUMER.insertParameterTypes(0, char.class, Consumer.class, NodeBuilder.class));
+			MATCHES = find("matches", CONSUMER.insertParameterTypes(0, CharacterMatcher.class, int.class, int.class, Consumer.class, NodeBuilder.class));
+			END_OF_INPUT = find("endOfInput", CONSUMER.insertParameterTypes(0, Consumer.class));
+			CUT = find("cut", CONSUMER);
+			COMMIT = find("commit", CONSUMER);
+			INVOKE = find("invoke", CONSUMER.insertParameterTypes(0, Consumer.class, boolean.class));
+			CALL = find("call", CONSUMER.insertParameterTypes(0, int.class, MethodHandle.class));
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle find(String name, MethodType type) throws ReflectiveOperationException {
+		return MethodHandles.lookup().findStatic(Specializer.class, name, type);
+	}
+
+	// The consumers inlined into the body of a rule, up to the rules it calls
+	private static final MemoizationPolicy.Structure BODY = new MemoizationPolicy.Structure() {
+		@Override
+		public Consumer[] reference(Consumer self, Consumer target) {
+			return NONE;
+		}
+	};
+
+	/**
+	 * A grammar running as specialized method handles.
+	 */
+	static final class Specialized implements CursorConsumer {
+		final Consumer root;
+		private final MethodHandle capture;
+		private final MethodHandle discard;
+
+		private Specialized(Consumer root, MethodHandle capture, MethodHandle discard) {
+			this.root = root;
+			this.capture = capture;
+			this.discard = discard;
+		}
+
+		@Override
+		public String toString() {
+			return "specialized[" + root + "]";
+		}
+
+		@Override
+		public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+			return Parsers.consumeFrom(this, input, parent);
+		}
+
+		@Override
+		public int consume(Cursor cursor, int position, Node parent) throws FatalParseException {
+			try {
+				return (int) (parent.discards() ? discard : capture).invokeExact(cursor, position, parent);
+			}
+			catch (FatalParseException | RuntimeException | Error e) {
+				throw e;
+			}
+			catch (Throwable e) {
+				throw new UndeclaredThrowableException(e);
+			}
+		}
+	}
+
+	private final List<Map<Consumer, MethodHandle>> handles = new ArrayList<>(2);
+	private final List<Map<Consumer, MutableCallSite>> rules = new ArrayList<>(2);
+	private final Deque<Object[]> pendingRules = new ArrayDeque<>();
+	private final Map<Consumer, Integer> depths = new IdentityHashMap<>();
+
+	private Specializer() {
+		for (int i = 0; i < 2; i++) {
+			handles.add(new IdentityHashMap<Consumer, MethodHandle>());
+			rules.add(new IdentityHashMap<Consumer, MutableCallSite>());
+		}
+	}
+
+	static Specialized specialize(Consumer root) {
+		if (root instanceof Specialized)
+			return (Specialized) root;
+		final Specializer specializer = new Specializer();
+		final MethodHandle capture = specializer.handle(root, false);
+		final MethodHandle discard = specializer.handle(root, true);
+		final List<MutableCallSite> sites = new ArrayList<>();
+		while (!specializer.pendingRules.isEmpty()) {
+			final Object[] rule = specializer.pendingRules.poll();
+			final MutableCallSite site = (MutableCallSite) rule[0];
+			site.setTarget(specializer.handle((Consumer) rule[1], (Boolean) rule[2]));
+			sites.add(site);
+		}
+		MutableCallSite.syncAll(sites.toArray(new MutableCallSite[sites.size()]));
+		return new Specialized(root, capture, discard);
+	}
+
+	private MethodHandle handle(Consumer c, boolean discard) {
+		final Map<Consumer, MethodHandle> known = handles.get(discard ? 1 : 0);
+		MethodHandle h = known.get(c);
+		if (h == null) {
+			h = build(c, discard);
+			known.put(c, h);
+		}
+		return h;
+	}
+
+	private MethodHandle rule(Consumer target, boolean discard) {
+		final Map<Consumer, MutableCallSite> sites = rules.get(discard ? 1 : 0);
+		MutableCallSite site = sites.get(target);
+		if (site == null) {
+			site = new MutableCallSite(CONSUMER);
+			sites.put(target, site);
+			pendingRules.add(new Object[] { site, target, discard });
+		}
+		return MethodHandles.insertArguments(CALL, 0, depth(target), site.dynamicInvoker());
+	}
+
+	/**
+	 * The number of consumers nested in the body of a rule, which is inlined
+	 * up to the rules it calls. A call counts as that many levels of nesting,
+	 * as the consumers take stack as if they had called each other.
+	 */
+	private int depth(Consumer c) {
+		Integer depth = depths.get(c);
+		if (depth == null) {
+			int deepest = 0;
+			for (final Consumer d : Parsers.accept(c, BODY))
+				deepest = Math.max(deepest, depth(d));
+			depths.put(c, depth = deepest + 1);
+		}
+		return depth;
+	}
+
+	private MethodHandle build(final Consumer c, final boolean discard) {
+		if (c instanceof Program)
+			return handle(((Program) c).root, discard);
+		if (c instanceof Specialized)
+			return handle(((Specialized) c).root, discard);
+		return Parsers.accept(c, new ConsumerVisitor<MethodHandle>() {
+			@Override
+			public MethodHandle sequence(Consumer self, Consumer[] parsers) {
+				MethodHandle h = parsers.length > 0 ? handle(parsers[parsers.length - 1], discard) : EMPTY;
+				for (int i = parsers.length - 2; i >= 0; i--)
+					h = MethodHandles.insertArguments(SEQUENCE, 0, handle(parsers[i], discard), h);
+				return node(self, h, discard);
+			}
+
+			@Override
+			public MethodHandle alternative(Consumer self, Consumer[] parsers) {
+				MethodHandle h = MethodHandles.insertArguments(BRANCH_LAST, 0, handle(parsers[parsers.length - 1], discard));
+				for (int i = parsers.length - 2; i >= 0; i--)
+					h = MethodHandles.insertArguments(BRANCH_NEXT, 0, handle(parsers[i], discard), h);
+				return node(self, MethodHandles.insertArguments(ALTERNATIVE, 0, h), discard);
+			}
+
+			@Override
+			public MethodHandle repeat(Consumer self, Consumer parser, int min, int max) {
+				return node(self, MethodHandles.insertArguments(REPEAT, 0, handle(parser, discard), min, max), discard);
+			}
+
+			@Override
+			public MethodHandle wrap(Consumer self, Consumer parser) {
+				if (self instanceof NodeBuilder)
+					return node(self, handle(parser, discard), discard);
+				if (self instanceof Parsers.Group)
+					return handle(parser, discard);
+				return invoke(self, discard);
+			}
+
+			@Override
+			public MethodHandle ignore(Consumer self, Consumer parser) {
+				return MethodHandles.insertArguments(IGNORE, 0, handle(parser, true));
+			}
+
+			@Override
+			public MethodHandle require(Consumer self, Consumer parser) {
+				return MethodHandles.insertArguments(REQUIRE, 0, handle(parser, discard));
+			}
+
+			@Override
+			public MethodHandle preserve(Consumer self, Consumer parser) {
+				return node(self, MethodHandles.insertArguments(PRESERVE, 0, handle(parser, discard)), discard);
+			}
+
+			@Override
+			public MethodHandle memoization(Consumer self, Consumer parser, boolean memoize) {
+				if (self instanceof NodeBuilder)
+					return node(self, handle(parser, discard), discard);
+				return handle(parser, discard);
+			}
+
+			@Override
+			public MethodHandle subparse(Consumer self, Consumer scanner, Consumer parser) {
+				return MethodHandles.insertArguments(SUBPARSE, 0, handle(scanner, true), handle(parser, discard));
+			}
+
+			@Override
+			public MethodHandle reference(Consumer self, Consumer target) {
+				if (target == null)
+					throw new IllegalStateException("Reference without target: " + self);
+				// Seeds are grown by the reference itself
+				if (MemoizationPolicy.isLeftRecursive(self))
+					return invoke(self, discard);
+				return rule(target, discard);
+			}
+
+			@Override
+			public MethodHandle exact(Consumer self, String token) {
+				final NodeBuilder builder = discard ? null : (NodeBuilder) self;
+				if (token.length() == 1)
+					return MethodHandles.insertArguments(EXACT_CHAR, 0, token.charAt(0), self, builder);
+				return MethodHandles.insertArguments(EXACT, 0, token, self, builder);
+			}
+
+			@Override
+			public MethodHandle matches(Consumer self, int min, int max, CharacterMatcher matcher) {
+				return MethodHandles.insertArguments(MATCHES, 0, matcher, min, max, self, discard ? null : (NodeBuilder) self);
+			}
+
+			@Override
+			public MethodHandle exactIgnoreCase(Consumer self, String token) {
+				return invoke(self, discard);
+			}
+
+			@Override
+			public MethodHandle operators(Consumer self, Consumer operand, Consumer[] prefix, Consumer[] suffix) {
+				return invoke(self, discard);
+			}
+
+			@Override
+			public MethodHandle oneOf(Consumer self, Consumer[] tokens) {
+				return invoke(self, discard);
+			}
+
+			@Override
+			public MethodHandle endOfInput(Consumer self) {
+				return MethodHandles.insertArguments(END_OF_INPUT, 0, self);
+			}
+
+			@Override
+			public MethodHandle cut(Consumer self) {
+				return CUT;
+			}
+
+			@Override
+			public MethodHandle commit(Consumer self) {
+				return COMMIT;
+			}
+
+			@Override
+			public MethodHandle opaque(Consumer self) {
+				return invoke(self, discard);
+			}
+		});
+	}
+
+	/**
+	 * Wraps the body of a consumer that builds its own node (and may be
+	 * memoized).
+	 */
+	private static MethodHandle node(Consumer self, MethodHandle body, boolean discard) {
+		if (discard)
+			return MethodHandles.insertArguments(RECOGNIZE, 0, self, body);
+		return MethodHandles.insertArguments(NODE, 0, self, self, body);
+	}
+
+	private static MethodHandle invoke(Consumer self, boolean discard) {
+		return MethodHandles.insertArguments(INVOKE, 0, self, discard);
+	}
+
+	private static int empty(Cursor cursor, int position, Node parent) {
+		return position;
+	}
+
+	private static int sequence(MethodHandle first, MethodHandle rest, Cursor cursor, int position, Node me) throws Throwable {
+		final int next = (int) first.invokeExact(cursor, position, me);
+		if (next == FAIL)
+			return FAIL;
+		return (int) rest.invokeExact(cursor, next, me);
+	}
+
+	private static int alternative(MethodHandle branches, Cursor cursor, int position, Node me) throws Throwable {
+		final int choice = cursor.enterChoice(true, position);
+		try {
+			return (int) branches.invokeExact(cursor, position, me, choice);
+		}
+		finally {
+			cursor.exitChoice(choice);
+		}
+	}
+
+	private static int branch(MethodHandle branch, MethodHandle next, Cursor cursor, int position, Node me, int choice) throws Throwable {
+		final int end = (int) branch.invokeExact(cursor, position, me);
+		if (end != FAIL)
+			return end;
+		if (cursor.isCut(choice))
+			return FAIL;
+		return (int) next.invokeExact(cursor, position, me, choice);
+	}
+
+	private static int lastBranch(MethodHandle branch, Cursor cursor, int position, Node me, int choice) throws Throwable {
+		cursor.armChoice(choice, false, position);
+		return (int) branch.invokeExact(cursor, position, me);
+	}
+
+	private static int repeat(MethodHandle body, int min, int max, Cursor cursor, int position, Node me) throws Throwable {
+		int i = 0;
+		final int choice = cursor.enterChoice(true, position);
+		try {
+			while (max == -1 || i < max) {
+				cursor.armChoice(choice, i >= min, position);
+				final int next = (int) body.invokeExact(cursor, position, me);
+				if (next == FAIL) {
+					if (cursor.isCut(choice))
+						return FAIL;
+					break;
+				}
+				position = next;
+				i++;
+			}
+		}
+		finally {
+			cursor.exitChoice(choice);
+		}
+		return i < min ? FAIL : position;
+	}
+
+	private static int node(NodeBuilder builder, Consumer self, MethodHandle body, Cursor cursor, int position, Node parent) throws Throwable {
+		final int id = cursor.memoId(self);
+		Node me = cursor.memoized(id, position);
+		if (me == Cursor.MISMATCH)
+			return FAIL;
+		if (me != null) {
+			builder.apply(parent, me);
+			return me.end();
+		}
+		me = new Node(null);
+		final int end = (int) body.invokeExact(cursor, position, me);
+		if (end == FAIL) {
+			cursor.memoize(id, position, null);
+			return FAIL;
+		}
+		me.start(position);
+		me.end(end);
+		builder.finish(me);
+		cursor.memoize(id, position, me);
+		builder.apply(parent, me);
+		return end;
+	}
+
+	private static int recognize(Consumer self, MethodHandle body, Cursor cursor, int position, Node discard) throws Throwable {
+		final int id = cursor.memoId(self);
+		final Node memoized = cursor.memoized(id, position);
+		if (memoized == Cursor.MISMATCH)
+			return FAIL;
+		if (memoized != null)
+			return memoized.end();
+		final int end = (int) body.invokeExact(cursor, position, discard);
+		if (end == FAIL)
+			cursor.memoize(id, position, null);
+		return end;
+	}
+
+	private static int call(int depth, MethodHandle rule, Cursor cursor, int position, Node parent) throws Throwable {
+		cursor.nest(position, depth);
+		final int end = (int) rule.invokeExact(cursor, position, parent);
+		cursor.unnest(depth);
+		return end;
+	}
+
+	private static int ignore(MethodHandle body, Cursor cursor, int position, Node parent) throws Throwable {
+		return (int) body.invokeExact(cursor, position, Node.discard());
+	}
+
+	private static int require(MethodHandle body, Cursor cursor, int position, Node parent) throws Throwable {
+		final int end = (int) body.invokeExact(cursor, position, parent);
+		if (end == FAIL)
+			throw Parsers.missing(cursor, position);
+		return end;
+	}
+
+	private static int preserve(MethodHandle body, Cursor cursor, int position, Node me) throws Throwable {
+		final int choice = cursor.enterChoice(false, position);
+		try {
+			return (int) body.invokeExact(cursor, position, me) == FAIL ? FAIL : position;
+		}
+		finally {
+			cursor.exitChoice(choice);
+		}
+	}
+
+	private static int subparse(MethodHandle scanner, MethodHandle parser, Cursor cursor, int position, Node parent) throws Throwable {
+		final int choice = cursor.enterChoice(false, position);
+		try {
+			final int end = (int) scanner.invokeExact(cursor, position, Node.discard());
+			if (end == FAIL)
+				return FAIL;
+			final int limit = cursor.limit(end);
+			try {
+				return (int) parser.invokeExact(cursor, position, parent);
+			}
+			finally {
+				cursor.limit(limit);
+			}
+		}
+		finally {
+			cursor.exitChoice(choice);
+		}
+	}
+
+	private static int exact(String token, Consumer self, NodeBuilder builder, Cursor cursor, int position, Node parent) {
+		if (!cursor.regionMatches(position, token))
+			return mismatch(self, cursor, position);
+		final int length = token.length();
+		if (builder != null)
+			parent.addChildren(builder.leaf(cursor, position, position + length));
+		return position + length;
+	}
+
+	private static int exactChar(char ch, Consumer self, NodeBuilder builder, Cursor cursor, int position, Node parent) {
+		if (cursor.available(position, 1) < 1 || cursor.charAt(position) != ch)
+			return mismatch(self, cursor, position);
+		if (builder != null)
+			parent.addChildren(builder.leaf(cursor, position, position + 1));
+		return position + 1;
+	}
+
+	private static int matches(CharacterMatcher matcher, int min, int max, Consumer self, NodeBuilder builder, Cursor cursor, int position, Node parent) {
+		final int i = cursor.scan(position, max, matcher);
+		if (i < min)
+			return mismatch(self, cursor, position + i);
+		if (builder != null)
+			parent.addChildren(builder.leaf(cursor, position, position + i));
+		return position + i;
+	}
+
+	private static int endOfInput(Consumer self, Cursor cursor, int position, Node parent) {
+		return cursor.available(position, 1) > 0 ? mismatch(self, cursor, position) : position;
+	}
+
+	private static int mismatch(Consumer terminal, Cursor cursor, int position) {
+		cursor.expected(position, terminal);
+		return FAIL;
+	}
+
+	private static int cut(Cursor cursor, int position, Node parent) {
+		cursor.cut(position);
+		return position;
+	}
+
+	private static int commit(Cursor cursor, int position, Node parent) {
+		cursor.commit(position);
+		return position;
+	}
+
+	private static int invoke(Consumer consumer, boolean discard, Cursor cursor, int position, Node parent) throws FatalParseException {
+		return Parsers.consumeAt(consumer, cursor, position, discard ? Node.discard() : parent);
+	}
+}
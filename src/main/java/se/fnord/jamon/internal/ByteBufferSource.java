@@ -0,0 +1,102 @@
+package se.fnord.jamon.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import se.fnord.jamon.CharacterMatcher;
+
+/**
+ * Reads the remaining bytes of a buffer in place, one byte per position. Bytes
+ * are matched as the characters 0-255; only node values are decoded, using
+ * the charset, which must encode ASCII as single bytes (eg. UTF-8).
+ */
+final class ByteBufferSource extends Source {
+	private final ByteBuffer buffer;
+	private final Charset charset;
+	private final int offset;
+	private final int length;
+
+	ByteBufferSource(ByteBuffer buffer, Charset charset) {
+		if (!isAsciiCompatible(charset))
+			throw new IllegalArgumentException(String.format("%s does not encode ASCII as single bytes", charset));
+		this.buffer = buffer.duplicate();
+		this.charset = charset;
+		this.offset = buffer.position();
+		this.length = buffer.remaining();
+	}
+
+	private static boolean isAsciiCompatible(Charset charset) {
+		final byte[] ascii = new byte[0x80];
+		for (int i = 0; i < ascii.length; i++)
+			ascii[i] = (byte) i;
+		final String decoded = new String(ascii, charset);
+		if (decoded.length() != ascii.length)
+			return false;
+		for (int i = 0; i < ascii.length; i++)
+			if (decoded.charAt(i) != i)
+				return false;
+		return true;
+	}
+
+	@Override
+	char charAt(int position) {
+		return (char) (buffer.get(offset + position) & 0xff);
+	}
+
+	@Override
+	int available(int position, int count) {
+		return Math.min(count, length - position);
+	}
+
+	@Override
+	int scan(int start, int end, CharacterMatcher matcher) {
+		if (!buffer.hasArray()) {
+			// Direct and mapped buffers, read with absolute gets
+			final ByteBuffer buffer = this.buffer;
+			for (int i = start + offset; i < end + offset; i++)
+				if (!matcher.match((char) (buffer.get(i) & 0xff)))
+					return i - offset;
+			return end;
+		}
+		final byte[] bytes = buffer.array();
+		final int offset = buffer.arrayOffset() + this.offset;
+		for (int i = start + offset; i < end + offset; i++)
+			if (!matcher.match((char) (bytes[i] & 0xff)))
+				return i - offset;
+		return end;
+	}
+
+	@Override
+	boolean regionMatches(int position, String token) {
+		if (!buffer.hasArray()) {
+			final ByteBuffer buffer = this.buffer;
+			final int start = offset + position;
+			for (int i = 0; i < token.length(); i++)
+				if (token.charAt(i) != (buffer.get(start + i) & 0xff))
+					return false;
+			return true;
+		}
+		final byte[] bytes = buffer.array();
+		final int start = buffer.arrayOffset() + offset + position;
+		for (int i = 0; i < token.length(); i++)
+			if (token.charAt(i) != (bytes[start + i] & 0xff))
+				return false;
+		return true;
+	}
+
+	@Override
+	int length() {
+		return length;
+	}
+
+	@Override
+	String substring(int start, int end) {
+		if (buffer.hasArray())
+			return new String(buffer.array(), buffer.arrayOffset() + offset + start, end - start, charset);
+		final byte[] bytes = new byte[end - start];
+		final ByteBuffer range = buffer.duplicate();
+		range.position(offset + start);
+		range.get(bytes);
+		return new String(bytes, charset);
+	}
+}
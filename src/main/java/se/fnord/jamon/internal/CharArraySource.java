@@ -0,0 +1,59 @@
+package se.fnord.jamon.internal;
+
+import se.fnord.jamon.CharacterMatcher;
+
+final class CharArraySource extends Source {
+	private final char[] chars;
+	private final int offset;
+	private final int length;
+
+	CharArraySource(char[] chars) {
+		this(chars, 0, chars.length);
+	}
+
+	CharArraySource(char[] chars, int offset, int length) {
+		this.chars = chars;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	char charAt(int position) {
+		return chars[offset + position];
+	}
+
+	@Override
+	int available(int position, int count) {
+		return Math.min(count, length - position);
+	}
+
+	@Override
+	int scan(int start, int end, CharacterMatcher matcher) {
+		final char[] chars = this.chars;
+		final int offset = this.offset;
+		for (int i = start + offset; i < end + offset; i++)
+			if (!matcher.match(chars[i]))
+				return i - offset;
+		return end;
+	}
+
+	@Override
+	boolean regionMatches(int position, String token) {
+		final char[] chars = this.chars;
+		final int start = offset + position;
+		for (int i = 0; i < token.length(); i++)
+			if (token.charAt(i) != chars[start + i])
+				return false;
+		return true;
+	}
+
+	@Override
+	int length() {
+		return length;
+	}
+
+	@Override
+	String substring(int start, int end) {
+		return new String(chars, offset + start, end - start);
+	}
+}
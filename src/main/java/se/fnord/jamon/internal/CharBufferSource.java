@@ -0,0 +1,42 @@
+package se.fnord.jamon.internal;
+
+import java.nio.CharBuffer;
+
+/**
+ * Reads the remaining characters of a buffer without an array (eg. a direct
+ * or read-only buffer) in place, using absolute gets.
+ */
+final class CharBufferSource extends Source {
+	private final CharBuffer buffer;
+	private final int offset;
+	private final int length;
+
+	CharBufferSource(CharBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		this.offset = buffer.position();
+		this.length = buffer.remaining();
+	}
+
+	@Override
+	char charAt(int position) {
+		return buffer.get(offset + position);
+	}
+
+	@Override
+	int available(int position, int count) {
+		return Math.min(count, length - position);
+	}
+
+	@Override
+	int length() {
+		return length;
+	}
+
+	@Override
+	String substring(int start, int end) {
+		final char[] chars = new char[end - start];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = buffer.get(offset + start + i);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,33 @@
+package se.fnord.jamon.internal;
+
+/**
+ * Reads any CharSequence in place. The sequence must not change during the
+ * parse.
+ */
+final class CharSequenceSource extends Source {
+	private final CharSequence sequence;
+
+	CharSequenceSource(CharSequence sequence) {
+		this.sequence = sequence;
+	}
+
+	@Override
+	char charAt(int position) {
+		return sequence.charAt(position);
+	}
+
+	@Override
+	int available(int position, int count) {
+		return Math.min(count, sequence.length() - position);
+	}
+
+	@Override
+	int length() {
+		return sequence.length();
+	}
+
+	@Override
+	String substring(int start, int end) {
+		return sequence.subSequence(start, end).toString();
+	}
+}
@@ -0,0 +1,38 @@
+package se.fnord.jamon.internal;
+
+import se.fnord.jamon.ParseContext;
+
+/**
+ * The characters of a context of another implementation, at the positions of
+ * the context. Characters before the context can not be read.
+ */
+final class ContextSequence implements CharSequence {
+	private final ParseContext context;
+
+	ContextSequence(ParseContext context) {
+		this.context = context;
+	}
+
+	@Override
+	public int length() {
+		return context.end();
+	}
+
+	@Override
+	public char charAt(int index) {
+		return context.charAt(index - context.start());
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		final StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++)
+			sb.append(charAt(i));
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(context.start(), context.end()).toString();
+	}
+}
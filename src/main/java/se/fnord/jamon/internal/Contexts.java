@@ -1,19 +1,135 @@
 package se.fnord.jamon.internal;
 
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
-import se.fnord.jamon.Node;
+import se.fnord.jamon.Consumer;
 import se.fnord.jamon.NodeContext;
 import se.fnord.jamon.ParseContext;
 import se.fnord.jamon.Path;
+import se.fnord.jamon.Predicate;
 
 public class Contexts {
-	private final Map<ParseContextImpl.CacheKey, Node> parseCache = new HashMap<>();
+	private static final Predicate<Consumer> MEMOIZE_ALL = new Predicate<Consumer>() {
+		@Override
+		public boolean test(Consumer o) {
+			return true;
+		}
+	};
+
+	private final MemoTable parseCache;
+	private final ParseState parseState;
 	private final Map<NodeContextImpl.CacheKey, Boolean> matchCache = new HashMap<>();
 
+	public Contexts() {
+		this(MEMOIZE_ALL);
+	}
+
+	/**
+	 * @param memoize Selects the consumers whose results are memoized
+	 */
+	public Contexts(Predicate<Consumer> memoize) {
+		this(memoize, -1);
+	}
+
+	/**
+	 * @param memoize Selects the consumers whose results are memoized
+	 * @param lookbehind The number of positions behind the furthest memoized
+	 *        position to keep memoized results for, or -1 to keep all results
+	 *        after the last committed position
+	 */
+	public Contexts(Predicate<Consumer> memoize, int lookbehind) {
+		this.parseCache = new MemoTable(memoize, lookbehind);
+		this.parseState = new ParseState(parseCache);
+	}
+
 	public ParseContext parseContext(String input) {
-		return new ParseContextImpl(0, input.toCharArray(), parseCache);
+		return parseContext(new StringSource(input));
+	}
+
+	/**
+	 * Creates a context that reads input in place, without copying it. The
+	 * input must not change during the parse. Node values are copied from
+	 * input, unless it is a String, so later changes do not affect them.
+	 */
+	public ParseContext parseContext(CharSequence input) {
+		if (input instanceof String)
+			return parseContext((String) input);
+		if (input instanceof CharBuffer)
+			return parseContext((CharBuffer) input);
+		return parseContext(new CharSequenceSource(input));
+	}
+
+	/**
+	 * Creates a context over the remaining characters of input, without
+	 * copying them or changing the position of input.
+	 */
+	public ParseContext parseContext(CharBuffer input) {
+		if (input.hasArray())
+			return parseContext(new CharArraySource(input.array(), input.arrayOffset() + input.position(), input.remaining()));
+		return parseContext(new CharBufferSource(input));
+	}
+
+	/**
+	 * Creates a context over the remaining bytes of input, without decoding
+	 * or copying them. Each byte is one position and is matched as the
+	 * character with the same value (0-255), so the charset must encode ASCII
+	 * as single bytes. Node values are decoded using the charset.
+	 */
+	public ParseContext parseContext(ByteBuffer input, Charset charset) {
+		return parseContext(new ByteBufferSource(input, charset));
+	}
+
+	/**
+	 * Creates a context over the characters of input from start to end,
+	 * reading input in place. Positions (and lines and columns in failures)
+	 * are those of input.
+	 */
+	public ParseContext parseContext(CharSequence input, int start, int end) {
+		final ParseContext whole = parseContext(input);
+		if (start < 0 || start > end || end > input.length())
+			throw new IndexOutOfBoundsException(start + ", " + end);
+		return new ParseContextImpl(start, end, ((ParseContextImpl) whole).cursor());
+	}
+
+	/**
+	 * Creates a context over the characters of a context not created by
+	 * Contexts (see {@link Cursor#supports(ParseContext)}), at the same
+	 * positions. The parses of the two contexts share no state.
+	 */
+	public ParseContext parseContext(ParseContext input) {
+		return new ParseContextImpl(input.start(), input.end(), new Cursor(new CharSequenceSource(new ContextSequence(input)), parseState));
+	}
+
+	private ParseContext parseContext(Source source) {
+		return new ParseContextImpl(0, source.length(), new Cursor(source, parseState));
+	}
+
+	/**
+	 * Creates a context that reads input as it is consumed, keeping only the
+	 * input that the parse may still backtrack to. Read errors are thrown as
+	 * {@link InputException}.
+	 */
+	public ParseContext parseContext(Reader input) {
+		return new ParseContextImpl(0, ParseContextImpl.UNBOUNDED, new Cursor(new ReaderSource(input, parseState), parseState));
+	}
+
+	/**
+	 * Clears the state of the previous parse, so the contexts can be reused
+	 * for another parse with the same memoization policy without allocating
+	 * new tables.
+	 */
+	public void reset() {
+		parseState.reset();
+		matchCache.clear();
+	}
+
+	public int parseCacheSize() {
+		return parseCache.size();
 	}
 
 	public NodeContext nodeContext(Path path) {
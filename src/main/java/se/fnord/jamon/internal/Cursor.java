@@ -0,0 +1,351 @@
+package se.fnord.jamon.internal;
+
+import se.fnord.jamon.CharacterMatcher;
+import se.fnord.jamon.Consumer;
+import se.fnord.jamon.FatalParseException;
+import se.fnord.jamon.Node;
+import se.fnord.jamon.ParseContext;
+import se.fnord.jamon.ParseException;
+
+/**
+ * The input and state of a parse, addressed by absolute position. Unlike
+ * {@link ParseContext}, which is spliced into a new context per step, a cursor
+ * is shared by the whole parse and consumers thread the position as an int.
+ * <p>
+ * The cursor is limited to the end of input of the context it was entered
+ * from (see {@link #limit(int)}). Characters must be made available with
+ * {@link #available(int, int)} before they are read.
+ */
+public final class Cursor {
+	// Streamed input is made available this many characters at a time
+	private static final int SCAN_WINDOW = 4096;
+
+	/** Returned by {@link #memoized(int, int)} for memoized mismatches */
+	public static final Node MISMATCH = new Node(null);
+
+	private final Source source;
+	private final ParseState state;
+	private final MemoTable memo;
+	private int limit = ParseContextImpl.UNBOUNDED;
+
+	Cursor(Source source, ParseState state) {
+		this.source = source;
+		this.state = state;
+		this.memo = state.memo;
+	}
+
+	/**
+	 * @return true if input was created by {@link Contexts}, and so has a
+	 *         cursor
+	 */
+	public static boolean supports(ParseContext input) {
+		return input instanceof ParseContextImpl;
+	}
+
+	/**
+	 * @return The cursor of the parse that input belongs to
+	 * @see #supports(ParseContext)
+	 */
+	public static Cursor of(ParseContext input) {
+		if (!(input instanceof ParseContextImpl))
+			throw new IllegalArgumentException("Unsupported parse context: " + input.getClass().getName());
+		return ((ParseContextImpl) input).cursor();
+	}
+
+	/**
+	 * Limits the cursor to the end of input.
+	 *
+	 * @return The previous limit, to be restored with {@link #limit(int)}
+	 */
+	public int enter(ParseContext input) {
+		return limit(((ParseContextImpl) input).limit());
+	}
+
+	/**
+	 * Sets the end of input.
+	 *
+	 * @return The previous end of input
+	 */
+	public int limit(int limit) {
+		final int previous = this.limit;
+		this.limit = limit;
+		return previous;
+	}
+
+	/**
+	 * @return A context at position, for consumers that only implement
+	 *         {@link Consumer#consume(ParseContext, Node)}
+	 */
+	public ParseContext context(int position) {
+		return new ParseContextImpl(position, limit, this);
+	}
+
+	Source source() {
+		return source;
+	}
+
+	/**
+	 * Makes up to count characters starting at position available.
+	 *
+	 * @return The number of available characters, less than count only at the
+	 *         end of input
+	 */
+	public int available(int position, int count) {
+		return Math.max(0, Math.min(source.available(position, count), limit - position));
+	}
+
+	/**
+	 * @return The character at position, which must have been made available
+	 */
+	public char charAt(int position) {
+		return source.charAt(position);
+	}
+
+	/**
+	 * Counts the characters from position that match matcher, making them
+	 * available as needed.
+	 *
+	 * @param max The maximum number of characters to match, or -1 for no
+	 *            limit
+	 * @return The number of matching characters
+	 */
+	public int scan(int position, int max, CharacterMatcher matcher) {
+		final int limit = max != -1 ? max : Integer.MAX_VALUE;
+		int i = 0;
+		int m = available(position, Math.min(limit, SCAN_WINDOW));
+		while (i < m) {
+			i = source.scan(position + i, position + m, matcher) - position;
+			if (i < m || m >= limit)
+				break;
+			m = available(position, (int) Math.min(limit, (long) m + SCAN_WINDOW));
+		}
+		return i;
+	}
+
+	/**
+	 * @return Whether the input at position is token
+	 */
+	public boolean regionMatches(int position, String token) {
+		final int length = token.length();
+		return available(position, length) == length && source.regionMatches(position, token);
+	}
+
+	/**
+	 * @return Whether the input at position is token, ignoring case
+	 */
+	public boolean regionMatchesIgnoreCase(int position, String token) {
+		final int length = token.length();
+		return available(position, length) == length && source.regionMatchesIgnoreCase(position, token);
+	}
+
+	public Node node(int start, int end, Object attachment) {
+		return new Node(start, end, source.subSequence(start, end), attachment);
+	}
+
+	public Node node(int start, int end, String value, Object attachment) {
+		return new Node(start, end, value, attachment);
+	}
+
+	public Node consumerMatched(Consumer group, int position) throws ParseException {
+		final Node n = memoized(memoId(group), position);
+		if (n == MISMATCH)
+			throw new ParseException("Memoized mismatch");
+		return n;
+	}
+
+	public Node consumerMatches(Consumer group, int position, Node node) {
+		return memoize(memoId(group), position, node);
+	}
+
+	public void consumerMismatches(Consumer group, int position) {
+		memoize(memoId(group), position, null);
+	}
+
+	/**
+	 * @return The memo id of group, or -1 if its results are not memoized
+	 */
+	public int memoId(Consumer group) {
+		return memo.id(group);
+	}
+
+	/**
+	 * @return The memoized node for id at position, {@link #MISMATCH} for a
+	 *         memoized mismatch or null if nothing is memoized
+	 */
+	public Node memoized(int id, int position) {
+		// Results at the position of a growing seed may depend on the seed
+		if (id < 0 || position == state.growing)
+			return null;
+		final int slot = memo.find(MemoTable.key(position, id));
+		if (slot < 0)
+			return null;
+		final Node n = memo.node(slot);
+		return n != null ? n : MISMATCH;
+	}
+
+	/**
+	 * Memoizes node, or a mismatch if node is null, for id at position.
+	 *
+	 * @return The memoized node
+	 */
+	public Node memoize(int id, int position, Node node) {
+		if (id < 0 || position == state.growing)
+			return node;
+		final long key = MemoTable.key(position, id);
+		final int slot = memo.find(key);
+		if (slot >= 0) {
+			final Node oldNode = memo.node(slot);
+			if (node == null ? oldNode != null : !node.equals(oldNode))
+				throw new IllegalStateException("The (start, parser) yielded different results on different rounds");
+			return oldNode;
+		}
+		memo.put(key, node);
+		return node;
+	}
+
+	/**
+	 * Starts growing a seed for a left recursive rule at position. Until
+	 * {@link #endGrowth(int)}, nothing is memoized at position, as results
+	 * there may depend on the seed.
+	 *
+	 * @return The seed
+	 */
+	public int grow(Object rule, int position) {
+		return state.grow(rule, position);
+	}
+
+	/**
+	 * @return The seed being grown for rule at position, or -1
+	 */
+	public int growth(Object rule, int position) {
+		return state.growth(rule, position);
+	}
+
+	/**
+	 * @return The node of seed, or null for a mismatch
+	 */
+	public Node seed(int seed) {
+		return state.seed(seed);
+	}
+
+	public void seed(int seed, Node node) {
+		state.seed(seed, node);
+	}
+
+	/**
+	 * Stops growing seed, and any seed started after it.
+	 */
+	public void endGrowth(int seed) {
+		state.endGrowth(seed);
+	}
+
+	/**
+	 * Notes that a consumer calls another at position on the Java stack, until
+	 * {@link #unnest(int)}.
+	 *
+	 * @param depth The number of consumers the call nests, for calls into
+	 *            consumers that are inlined into each other
+	 *
+	 * @throws FatalParseException If consumers would nest deeper than
+	 *             {@link #maxNesting(int)} allows
+	 */
+	public void nest(int position, int depth) throws FatalParseException {
+		state.nest(position, depth);
+	}
+
+	public void unnest(int depth) {
+		state.unnest(depth);
+	}
+
+	/**
+	 * Limits how deeply consumers may call each other for the rest of the
+	 * parse, or until the limit is set again.
+	 *
+	 * @return The previous limit
+	 */
+	public int maxNesting(int maxNesting) {
+		final int previous = state.maxNesting;
+		state.maxNesting = maxNesting;
+		return previous;
+	}
+
+	/**
+	 * Records that terminal (eg. an exact or matches consumer) failed at
+	 * position, for reporting the farthest failure of the parse.
+	 */
+	public void expected(int position, Object terminal) {
+		state.expected(position, terminal);
+	}
+
+	/**
+	 * @return The farthest position a terminal failed at, or -1
+	 */
+	public int farthest() {
+		return state.farthest();
+	}
+
+	/**
+	 * @return The terminals that failed at {@link #farthest()}
+	 */
+	public Object[] expected() {
+		return state.expected();
+	}
+
+	/**
+	 * @return The line and column (both counted from 1) of position, or null
+	 *         if they are no longer known
+	 */
+	public int[] location(int position) {
+		return source.location(position);
+	}
+
+	/**
+	 * Declares that the parse will not backtrack to before position, allowing
+	 * memoized results for earlier positions to be dropped.
+	 */
+	public void commit(int position) {
+		memo.commit(position);
+	}
+
+	/**
+	 * Registers a backtracking point at position. Scopes (alternatives and
+	 * repetitions) can be committed by {@link #cut(int)}, other backtracking
+	 * points (eg. lookahead) stop cuts from reaching outer scopes.
+	 *
+	 * @return A handle for the other choice methods
+	 */
+	public int enterChoice(boolean scope, int position) {
+		return state.enterChoice(scope, position);
+	}
+
+	/**
+	 * Sets whether a choice may still backtrack, eg. false while an
+	 * alternative tries its last branch. Arming a choice clears any cut.
+	 */
+	public void armChoice(int choice, boolean armed, int position) {
+		state.armChoice(choice, armed, position);
+	}
+
+	/**
+	 * @return true if the choice has been committed by a cut
+	 */
+	public boolean isCut(int choice) {
+		return state.isCut(choice);
+	}
+
+	/**
+	 * Unregisters the choice and any choices registered after it.
+	 */
+	public void exitChoice(int choice) {
+		state.exitChoice(choice);
+	}
+
+	/**
+	 * Commits the innermost scope to its current branch. Commits the parse
+	 * at position if no other backtracking points remain.
+	 */
+	public void cut(int position) {
+		if (state.cut())
+			memo.commit(position);
+	}
+}
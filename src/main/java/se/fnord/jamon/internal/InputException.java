@@ -0,0 +1,19 @@
+package se.fnord.jamon.internal;
+
+import java.io.IOException;
+
+/**
+ * Thrown through the parse when reading streamed input fails.
+ */
+public class InputException extends RuntimeException {
+	private static final long serialVersionUID = 4181209637404817227L;
+
+	InputException(IOException cause) {
+		super(cause.getMessage(), cause);
+	}
+
+	@Override
+	public synchronized IOException getCause() {
+		return (IOException) super.getCause();
+	}
+}
@@ -0,0 +1,207 @@
+package se.fnord.jamon.internal;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import se.fnord.jamon.Consumer;
+import se.fnord.jamon.Node;
+import se.fnord.jamon.Predicate;
+
+/**
+ * Packrat memo table keyed on (start position, consumer).
+ * <p>
+ * Consumers are numbered on first sight, and the (position, id) pair is packed
+ * into a long used as key in an open addressing (linear probing) table. A
+ * present key with a null node denotes a memoized mismatch, so neither lookups
+ * nor stores allocate once the table has reached its working size.
+ * <p>
+ * Consumers rejected by the memoization policy get the id -1 and are never
+ * stored.
+ * <p>
+ * Entries starting before the floor (the committed position, or the highest
+ * stored start minus the lookbehind) are treated as absent and are dropped the
+ * next time the table is resized, so that the table only holds what
+ * backtracking can still reach.
+ */
+final class MemoTable {
+	private static final long FREE = -1L;
+	private static final long PHI = 0x9E3779B97F4A7C15L;
+	private static final int MIN_CAPACITY = 64;
+	// Larger tables are not kept by reset()
+	private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+	private final Map<Consumer, Integer> ids = new IdentityHashMap<>();
+	private final Predicate<Consumer> memoize;
+	private final int lookbehind;
+	private int nextId;
+	private long[] keys;
+	private Node[] nodes;
+	private int shift;
+	private int size;
+	private int committed;
+	private int highWater;
+	private int floor;
+
+	/**
+	 * @param memoize Selects the consumers to memoize
+	 * @param lookbehind How far behind the furthest memoized position to keep
+	 *        entries, or -1 to keep them until committed
+	 */
+	MemoTable(Predicate<Consumer> memoize, int lookbehind) {
+		this.memoize = memoize;
+		this.lookbehind = lookbehind;
+		allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		nodes = new Node[capacity];
+		Arrays.fill(keys, FREE);
+		shift = Long.numberOfLeadingZeros(capacity - 1);
+	}
+
+	static long key(int start, int id) {
+		return ((long) start << 32) | (id & 0xffffffffL);
+	}
+
+	private static int start(long key) {
+		return (int) (key >>> 32);
+	}
+
+	/**
+	 * @return The id of consumer, or -1 if consumer is not memoized
+	 */
+	int id(Consumer consumer) {
+		Integer id = ids.get(consumer);
+		if (id == null) {
+			id = memoize.test(consumer) ? nextId++ : -1;
+			ids.put(consumer, id);
+		}
+		return id;
+	}
+
+	private int hash(long key) {
+		return (int) ((key * PHI) >>> shift);
+	}
+
+	/**
+	 * @return The slot holding key, or -1 if the key is not present
+	 */
+	int find(long key) {
+		if (start(key) < floor)
+			return -1;
+		final int mask = keys.length - 1;
+		for (int slot = hash(key);; slot = (slot + 1) & mask) {
+			final long k = keys[slot];
+			if (k == key)
+				return slot;
+			if (k == FREE)
+				return -1;
+		}
+	}
+
+	/**
+	 * @return The node in slot, or null if slot holds a mismatch
+	 */
+	Node node(int slot) {
+		return nodes[slot];
+	}
+
+	/**
+	 * Stores node (null for a mismatch) for key, replacing any previous value.
+	 */
+	void put(long key, Node node) {
+		final int start = start(key);
+		if (start < floor)
+			return;
+		if (start > highWater) {
+			highWater = start;
+			updateFloor();
+		}
+		final int mask = keys.length - 1;
+		int slot = hash(key);
+		for (;; slot = (slot + 1) & mask) {
+			final long k = keys[slot];
+			if (k == key) {
+				nodes[slot] = node;
+				return;
+			}
+			if (k == FREE)
+				break;
+		}
+		keys[slot] = key;
+		nodes[slot] = node;
+		if (++size > keys.length >>> 1)
+			resize();
+	}
+
+	/**
+	 * Drops all entries, for another parse with the same consumer ids.
+	 */
+	void reset() {
+		if (keys.length > MAX_RETAINED_CAPACITY) {
+			allocate(MIN_CAPACITY);
+		}
+		else if (size > 0) {
+			Arrays.fill(keys, FREE);
+			Arrays.fill(nodes, null);
+		}
+		size = 0;
+		committed = 0;
+		highWater = 0;
+		floor = 0;
+	}
+
+	/**
+	 * Drops all entries starting before position.
+	 */
+	void commit(int position) {
+		if (position > committed) {
+			committed = position;
+			updateFloor();
+		}
+	}
+
+	private void updateFloor() {
+		floor = lookbehind < 0 ? committed : Math.max(committed, highWater - lookbehind);
+	}
+
+	/**
+	 * Rehashes the live entries into a table sized for them, growing or
+	 * shrinking it as needed.
+	 */
+	private void resize() {
+		final long[] oldKeys = keys;
+		final Node[] oldNodes = nodes;
+		int live = 0;
+		for (final long key : oldKeys) {
+			if (key != FREE && start(key) >= floor)
+				live++;
+		}
+		int capacity = MIN_CAPACITY;
+		while (capacity < live * 3)
+			capacity <<= 1;
+
+		allocate(capacity);
+		final int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			final long key = oldKeys[i];
+			if (key == FREE || start(key) < floor)
+				continue;
+			int slot = hash(key);
+			while (keys[slot] != FREE)
+				slot = (slot + 1) & mask;
+			keys[slot] = key;
+			nodes[slot] = oldNodes[i];
+		}
+		size = live;
+	}
+
+	/**
+	 * @return The number of entries held by the table, including dead entries not yet dropped
+	 */
+	int size() {
+		return size;
+	}
+}
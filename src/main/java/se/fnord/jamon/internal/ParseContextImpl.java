@@ -1,98 +1,45 @@
 package se.fnord.jamon.internal;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
-
 import se.fnord.jamon.Consumer;
 import se.fnord.jamon.Node;
 import se.fnord.jamon.ParseContext;
 import se.fnord.jamon.ParseException;
 
 public class ParseContextImpl implements ParseContext {
-	private static final Node NONMATCHING = new Node();
-
-	public final class CacheKey {
-		private final int start;
-		private final Consumer group;
-
-		public CacheKey(int start, Consumer group) {
-			this.start = start;
-			this.group = group;
-		}
-
-		public int start() {
-			return start;
-		}
-
-		public Consumer group() {
-			return group;
-		}
-
-		@Override
-		public String toString() {
-			return String.format("{ %d, %s }", start, Objects.toString(group));
-		}
-
-		@Override
-		public int hashCode() {
-			return start * 31 + System.identityHashCode(group);
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (!(obj instanceof CacheKey))
-				return false;
-			final CacheKey that = (CacheKey) obj;
-			return this.start == that.start && this.group == that.group; // Yes, we really do want instance checks.
-		}
-	}
+	/** The end of contexts over input of yet unknown length */
+	static final int UNBOUNDED = Integer.MAX_VALUE;
 
-	private final Map<CacheKey, Node> nodeCache;
-	private final char[] chars;
+	private final Cursor cursor;
 	private final int start;
 	private final int end;
 
-	ParseContextImpl(int start, char[] chars) {
-		this(start, chars, new HashMap<CacheKey, Node>());
+	ParseContextImpl(int start, int end, Cursor cursor) {
+		this.cursor = cursor;
+		this.start = start;
+		this.end = end;
 	}
 
-	ParseContextImpl(int start, char[] chars, Map<CacheKey, Node> nodeCache) {
-		this(start, chars.length, chars, nodeCache);
+	Cursor cursor() {
+		return cursor;
 	}
 
-	ParseContextImpl(int start, int end, char[] chars, Map<CacheKey, Node> nodeCache) {
-		this.chars = chars;
-		this.start = start;
-		this.end = end;
-		this.nodeCache = nodeCache;
+	/**
+	 * @return The end of input, without reading all of streamed input
+	 */
+	int limit() {
+		return end;
 	}
 
 	public Node consumerMatched(Consumer group) throws ParseException {
-		Node n = nodeCache.get(new CacheKey(start, group));
-		if (n == NONMATCHING)
-			throw new ParseException();
-		return n;
+		return cursor.consumerMatched(group, start);
 	}
 
 	public Node consumerMatches(Consumer group, Node node) {
-		CacheKey key = new CacheKey(start, group);
-		Node oldNode = nodeCache.get(key);
-		if (oldNode != null) {
-			if (!oldNode.equals(node))
-				throw new IllegalStateException("The (start, parser) yielded different results on different rounds");
-			return oldNode;
-		}
-		nodeCache.put(key, node);
-		return node;
+		return cursor.consumerMatches(group, start, node);
 	}
 
 	public void consumerMismatches(Consumer group) {
-		Node oldNode = nodeCache.put(new CacheKey(start, group), NONMATCHING);
-		if (oldNode != null && oldNode != NONMATCHING)
-			throw new IllegalStateException("The (start, parser) yielded different results on different rounds");
+		cursor.consumerMismatches(group, start);
 	}
 
 	@Override
@@ -102,44 +49,53 @@ public class ParseContextImpl implements ParseContext {
 
 	@Override
 	public int end() {
+		if (end == UNBOUNDED)
+			return cursor.source().length();
 		return end;
 	}
 
 	@Override
 	public int length() {
-		return end - start;
+		return end() - start;
+	}
+
+	/**
+	 * Unlike {@link #length()}, does not need to read all streamed input.
+	 */
+	private int available(int count) {
+		return Math.max(0, Math.min(cursor.source().available(start, count), end - start));
 	}
 
 	@Override
 	public char charAt(int index) {
-		if (index >= end)
+		if (index < 0 || index >= end - start || cursor.source().available(start, index + 1) <= index)
 			throw new IndexOutOfBoundsException();
-		return chars[start + index];
+		return cursor.source().charAt(start + index);
 	}
 
 	@Override
 	public ParseContext splice(int splicePoint) {
-		return new ParseContextImpl(splicePoint, end, chars, nodeCache);
+		return new ParseContextImpl(splicePoint, end, cursor);
 	}
 
 	@Override
 	public ParseContext splice(int splicePoint, int end) {
-		return new ParseContextImpl(splicePoint, end, chars, nodeCache);
+		return new ParseContextImpl(splicePoint, end, cursor);
 	}
 
 	@Override
     public Node node(int index, Object attachment) {
-	    return new Node(start, start + index, new String(chars, start, index), attachment);
+	    return cursor.node(start, start + index, attachment);
     }
 
 	@Override
     public Node node(int index, String value, Object attachment) {
-	    return new Node(start, start + index, value, attachment);
+	    return cursor.node(start, start + index, value, attachment);
     }
 
 	@Override
 	public String toString() {
-	    return new String(chars, start, Math.min(chars.length - start, 16));
+	    return cursor.source().substring(start, start + available(16));
 	}
 
 }
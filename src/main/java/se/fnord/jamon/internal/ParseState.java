@@ -0,0 +1,243 @@
+package se.fnord.jamon.internal;
+
+import java.util.Arrays;
+
+import se.fnord.jamon.FatalParseException;
+import se.fnord.jamon.Node;
+
+/**
+ * Mutable state shared by all contexts of a parse: the memo table, the stack
+ * of active backtracking points and the farthest failure.
+ * <p>
+ * A backtracking point is either a scope (alternatives and repetitions) that a
+ * cut can commit, or a pin (lookahead and subparsing) that always returns to its
+ * start position and stops cuts from reaching scopes outside it. When a cut
+ * leaves no armed backtracking point, nothing before the cut can be revisited
+ * and the memo table is committed at the cut position.
+ * <p>
+ * Left recursive rules are parsed by growing a seed: the rule is parsed over
+ * and over, with recursive invocations at the same position returning the
+ * previous result, until the match stops getting longer. The seeds being
+ * grown are kept on a stack of their own, as the memo table may drop entries.
+ * <p>
+ * Consumers that run on the Java stack count how deeply they are nested, so
+ * that deeply nested input fails the parse before it overflows the stack. The
+ * count is left as it is by fatal failures, as they end the parse.
+ */
+final class ParseState {
+	static final int DEFAULT_MAX_NESTING = 1000;
+
+	private static final byte ARMED = 0;
+	private static final byte DISARMED = 1;
+	private static final byte CUT = 2;
+	private static final byte PINNED = 3;
+
+	final MemoTable memo;
+	private byte[] choices = new byte[16];
+	private int[] positions = new int[16];
+	private int depth;
+	private int armed;
+	private int farthest = -1;
+	private Object[] expected = new Object[8];
+	private int expectedCount;
+	private Object[] growingRules = new Object[4];
+	private int[] growingPositions = new int[4];
+	private Node[] seeds = new Node[4];
+	private int growingDepth;
+	// The position of the innermost seed being grown, or -1
+	int growing = -1;
+	private int nesting;
+	int maxNesting = DEFAULT_MAX_NESTING;
+
+	ParseState(MemoTable memo) {
+		this.memo = memo;
+	}
+
+	/**
+	 * Clears the state for another parse.
+	 */
+	void reset() {
+		memo.reset();
+		depth = 0;
+		armed = 0;
+		farthest = -1;
+		Arrays.fill(expected, 0, expectedCount, null);
+		expectedCount = 0;
+		endGrowth(0);
+		nesting = 0;
+		maxNesting = DEFAULT_MAX_NESTING;
+	}
+
+	void nest(int position, int depth) throws FatalParseException {
+		if (maxNesting >= 0 && nesting + depth > maxNesting)
+			throw new FatalParseException(String.format("Input nested deeper than %d consumers at %d", maxNesting, position));
+		nesting += depth;
+	}
+
+	void unnest(int depth) {
+		nesting -= depth;
+	}
+
+	int enterChoice(boolean scope, int position) {
+		if (depth == choices.length) {
+			choices = Arrays.copyOf(choices, depth << 1);
+			positions = Arrays.copyOf(positions, depth << 1);
+		}
+		choices[depth] = scope ? ARMED : PINNED;
+		positions[depth] = position;
+		armed++;
+		return depth++;
+	}
+
+	void armChoice(int choice, boolean arm, int position) {
+		final byte state = choices[choice];
+		if (state == PINNED)
+			return;
+		positions[choice] = position;
+		if (arm && state != ARMED) {
+			choices[choice] = ARMED;
+			armed++;
+		}
+		else if (!arm && state != DISARMED) {
+			if (state == ARMED)
+				armed--;
+			choices[choice] = DISARMED;
+		}
+	}
+
+	boolean isCut(int choice) {
+		return choices[choice] == CUT;
+	}
+
+	void exitChoice(int choice) {
+		while (depth > choice) {
+			final byte state = choices[--depth];
+			if (state == ARMED || state == PINNED)
+				armed--;
+		}
+	}
+
+	/**
+	 * Commits the innermost scope, unless a pin is closer.
+	 *
+	 * @return true if no armed backtracking points remain
+	 */
+	boolean cut() {
+		if (depth > 0) {
+			final byte state = choices[depth - 1];
+			if (state == ARMED)
+				armed--;
+			if (state != PINNED)
+				choices[depth - 1] = CUT;
+		}
+		return armed == 0;
+	}
+
+	/**
+	 * Records a terminal that failed at position, if no terminal has failed
+	 * further into the input. Duplicates are only removed when the record
+	 * fills up, as most records are dropped when the parse moves on.
+	 */
+	void expected(int position, Object terminal) {
+		if (position < farthest)
+			return;
+		if (position > farthest) {
+			farthest = position;
+			expectedCount = 0;
+		}
+		if (expectedCount == expected.length) {
+			distinctExpected();
+			if (expectedCount > expected.length >> 1)
+				expected = Arrays.copyOf(expected, expected.length << 1);
+		}
+		expected[expectedCount++] = terminal;
+	}
+
+	private void distinctExpected() {
+		int n = 0;
+		next:
+		for (int i = 0; i < expectedCount; i++) {
+			for (int j = 0; j < n; j++)
+				if (expected[j] == expected[i])
+					continue next;
+			expected[n++] = expected[i];
+		}
+		Arrays.fill(expected, n, expectedCount, null);
+		expectedCount = n;
+	}
+
+	/**
+	 * @return The farthest position a terminal failed at, or -1
+	 */
+	int farthest() {
+		return farthest;
+	}
+
+	/**
+	 * @return The distinct terminals that failed at {@link #farthest()}
+	 */
+	Object[] expected() {
+		distinctExpected();
+		return Arrays.copyOf(expected, expectedCount);
+	}
+
+	/**
+	 * Starts growing a seed for rule at position, initially a mismatch.
+	 * Positions of nested seeds never decrease, as consumers only invoke
+	 * others at or after their own position.
+	 *
+	 * @return The seed, for {@link #seed(int, Node)} and {@link #endGrowth(int)}
+	 */
+	int grow(Object rule, int position) {
+		if (growingDepth == growingRules.length) {
+			growingRules = Arrays.copyOf(growingRules, growingDepth << 1);
+			growingPositions = Arrays.copyOf(growingPositions, growingDepth << 1);
+			seeds = Arrays.copyOf(seeds, growingDepth << 1);
+		}
+		growingRules[growingDepth] = rule;
+		growingPositions[growingDepth] = position;
+		seeds[growingDepth] = null;
+		growing = position;
+		return growingDepth++;
+	}
+
+	/**
+	 * @return The seed being grown for rule at position, or -1
+	 */
+	int growth(Object rule, int position) {
+		for (int i = growingDepth - 1; i >= 0 && growingPositions[i] == position; i--)
+			if (growingRules[i] == rule)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return The node of seed, or null for a mismatch
+	 */
+	Node seed(int seed) {
+		return seeds[seed];
+	}
+
+	void seed(int seed, Node node) {
+		seeds[seed] = node;
+	}
+
+	void endGrowth(int seed) {
+		while (growingDepth > seed)
+			seeds[--growingDepth] = null;
+		growing = growingDepth > 0 ? growingPositions[growingDepth - 1] : -1;
+	}
+
+	/**
+	 * @return The lowest position that an armed or pinned backtracking point
+	 *         may return to, or position if it is lower
+	 */
+	int backtrackFloor(int position) {
+		for (int i = 0; i < depth; i++) {
+			final byte state = choices[i];
+			if ((state == ARMED || state == PINNED) && positions[i] < position)
+				position = positions[i];
+		}
+		return position;
+	}
+}
@@ -0,0 +1,156 @@
+package se.fnord.jamon.internal;
+
+import se.fnord.jamon.CharacterMatcher;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads input on demand into a ring of fixed size chunks.
+ * <p>
+ * When a new chunk is needed, chunks entirely before both the requesting
+ * position and every active backtracking point of the parse are released
+ * (and reused), so memory use follows the backtracking depth of the grammar
+ * rather than the size of the input. Consumers that read input behind their
+ * start position without registering a choice may see an
+ * {@link IllegalStateException} for released input.
+ */
+final class ReaderSource extends Source {
+	private static final int CHUNK_SHIFT = 13;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final Reader reader;
+	private final ParseState state;
+	private char[][] ring = new char[4][];
+	private int head;
+	private int count;
+	private int firstChunk;
+	private int loaded;
+	private boolean eof;
+	private char[] spare;
+	// Line breaks in released input, for error locations
+	private int releasedLines;
+	private int releasedLineStart;
+
+	ReaderSource(Reader reader, ParseState state) {
+		this.reader = reader;
+		this.state = state;
+	}
+
+	private char[] chunk(int position) {
+		final int c = (position >>> CHUNK_SHIFT) - firstChunk;
+		if (c < 0)
+			throw new IllegalStateException(String.format("Input at position %d has been released", position));
+		return ring[(head + c) & (ring.length - 1)];
+	}
+
+	@Override
+	char charAt(int position) {
+		return chunk(position)[position & CHUNK_MASK];
+	}
+
+	@Override
+	int available(int position, int count) {
+		final long want = Math.min((long) position + count, Integer.MAX_VALUE);
+		while (loaded < want && !eof)
+			load(position);
+		return (int) Math.max(0, Math.min(count, (long) loaded - position));
+	}
+
+	@Override
+	int scan(int start, int end, CharacterMatcher matcher) {
+		// One chunk at a time
+		int position = start;
+		while (position < end) {
+			final char[] chunk = chunk(position);
+			final int from = position & CHUNK_MASK;
+			final int to = from + Math.min(CHUNK_SIZE - from, end - position);
+			for (int i = from; i < to; i++)
+				if (!matcher.match(chunk[i]))
+					return position + i - from;
+			position += to - from;
+		}
+		return end;
+	}
+
+	@Override
+	int length() {
+		while (!eof)
+			load(firstChunk << CHUNK_SHIFT);
+		return loaded;
+	}
+
+	@Override
+	int[] location(int position) {
+		final int start = firstChunk << CHUNK_SHIFT;
+		if (position < start)
+			return null;
+		return location(start, releasedLines + 1, releasedLineStart, position);
+	}
+
+	@Override
+	String substring(int start, int end) {
+		final char[] result = new char[end - start];
+		int position = start;
+		while (position < end) {
+			final int offset = position & CHUNK_MASK;
+			final int n = Math.min(CHUNK_SIZE - offset, end - position);
+			System.arraycopy(chunk(position), offset, result, position - start, n);
+			position += n;
+		}
+		return new String(result);
+	}
+
+	private void release(int requester) {
+		final int floor = state.backtrackFloor(requester);
+		// The chunk being filled is never released
+		while (firstChunk < loaded >>> CHUNK_SHIFT && (firstChunk + 1) << CHUNK_SHIFT <= floor) {
+			final int end = (firstChunk + 1) << CHUNK_SHIFT;
+			final int[] location = location(firstChunk << CHUNK_SHIFT, releasedLines + 1, releasedLineStart, end);
+			releasedLines = location[0] - 1;
+			releasedLineStart = end - location[1] + 1;
+			spare = ring[head];
+			ring[head] = null;
+			head = (head + 1) & (ring.length - 1);
+			firstChunk++;
+			count--;
+		}
+	}
+
+	private void load(int requester) {
+		release(requester);
+		if (count == ring.length) {
+			final char[][] grown = new char[ring.length << 1][];
+			for (int i = 0; i < count; i++)
+				grown[i] = ring[(head + i) & (ring.length - 1)];
+			ring = grown;
+			head = 0;
+		}
+
+		// Fill the last, partial chunk before starting a new one
+		final int current = (loaded >>> CHUNK_SHIFT) - firstChunk;
+		final char[] chunk;
+		if (current < count) {
+			chunk = ring[(head + current) & (ring.length - 1)];
+		}
+		else {
+			chunk = spare != null ? spare : new char[CHUNK_SIZE];
+			spare = null;
+			ring[(head + count) & (ring.length - 1)] = chunk;
+			count++;
+		}
+
+		try {
+			final int offset = loaded & CHUNK_MASK;
+			final int n = reader.read(chunk, offset, CHUNK_SIZE - offset);
+			if (n < 0)
+				eof = true;
+			else
+				loaded += n;
+		}
+		catch (IOException e) {
+			throw new InputException(e);
+		}
+	}
+}
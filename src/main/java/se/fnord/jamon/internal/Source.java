@@ -0,0 +1,115 @@
+package se.fnord.jamon.internal;
+
+import se.fnord.jamon.CharacterMatcher;
+
+/**
+ * The characters of a parse, addressed by absolute position.
+ */
+abstract class Source {
+	/**
+	 * @return The character at position, which must have been made available
+	 */
+	abstract char charAt(int position);
+
+	/**
+	 * Makes up to count characters starting at position available. Input
+	 * before position may be released by sources that do not keep all input.
+	 *
+	 * @return The number of available characters, less than count only at the
+	 *         end of input
+	 */
+	abstract int available(int position, int count);
+
+	/**
+	 * @return The first position from start to end (which must have been
+	 *         made available) that does not match matcher, or end
+	 */
+	int scan(int start, int end, CharacterMatcher matcher) {
+		for (int i = start; i < end; i++)
+			if (!matcher.match(charAt(i)))
+				return i;
+		return end;
+	}
+
+	/**
+	 * @return Whether the characters from position (which must have been
+	 *         made available) are token
+	 */
+	boolean regionMatches(int position, String token) {
+		for (int i = 0; i < token.length(); i++)
+			if (token.charAt(i) != charAt(position + i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Compares code points rather than chars, so characters outside the BMP
+	 * are folded too.
+	 *
+	 * @return Whether the characters from position (which must have been
+	 *         made available) are token, ignoring case
+	 */
+	final boolean regionMatchesIgnoreCase(int position, String token) {
+		final int length = token.length();
+		for (int i = 0; i < length;) {
+			final int expected = token.codePointAt(i);
+			int actual = charAt(position + i);
+			if (Character.isHighSurrogate((char) actual) && i + 1 < length) {
+				final char low = charAt(position + i + 1);
+				if (Character.isLowSurrogate(low))
+					actual = Character.toCodePoint((char) actual, low);
+			}
+			if (Character.charCount(expected) != Character.charCount(actual) || !equalsIgnoreCase(expected, actual))
+				return false;
+			i += Character.charCount(expected);
+		}
+		return true;
+	}
+
+	private static boolean equalsIgnoreCase(int a, int b) {
+		if (a == b)
+			return true;
+		final int upperA = Character.toUpperCase(a);
+		final int upperB = Character.toUpperCase(b);
+		// Some scripts (eg. Georgian) only fold through lower case
+		return upperA == upperB || Character.toLowerCase(upperA) == Character.toLowerCase(upperB);
+	}
+
+	/**
+	 * @return The length of the input. May have to read all of it.
+	 */
+	abstract int length();
+
+	abstract String substring(int start, int end);
+
+	/**
+	 * @return The line and column (both counted from 1) of position, or null
+	 *         if the input before it has been released
+	 */
+	int[] location(int position) {
+		return location(0, 1, 0, position);
+	}
+
+	/**
+	 * Counts lines from start, which is known to be at line and to start a
+	 * line at lineStart.
+	 */
+	final int[] location(int start, int line, int lineStart, int position) {
+		final int end = start + available(start, position - start);
+		for (int i = start; i < end; i++) {
+			if (charAt(i) == '\n') {
+				line++;
+				lineStart = i + 1;
+			}
+		}
+		return new int[] { line, position - lineStart + 1 };
+	}
+
+	/**
+	 * @return The characters from start to end, for node values. Copied
+	 *         unless the input can not change, as nodes outlive the parse.
+	 */
+	CharSequence subSequence(int start, int end) {
+		return substring(start, end);
+	}
+}
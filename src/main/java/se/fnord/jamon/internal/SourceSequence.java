@@ -0,0 +1,48 @@
+package se.fnord.jamon.internal;
+
+/**
+ * A range of a source that is copied into a String only when needed. The
+ * source must not change while the sequence is used.
+ */
+final class SourceSequence implements CharSequence {
+	private final Source source;
+	private final int start;
+	private final int end;
+	private String string;
+
+	SourceSequence(Source source, int start, int end) {
+		this.source = source;
+		this.start = start;
+		this.end = end;
+	}
+
+	@Override
+	public int length() {
+		return end - start;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (string != null)
+			return string.charAt(index);
+		if (index < 0 || index >= end - start)
+			throw new IndexOutOfBoundsException();
+		return source.charAt(start + index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (string != null)
+			return string.subSequence(start, end);
+		if (start < 0 || end > this.end - this.start || start > end)
+			throw new IndexOutOfBoundsException();
+		return new SourceSequence(source, this.start + start, this.start + end);
+	}
+
+	@Override
+	public String toString() {
+		if (string == null)
+			string = source.substring(start, end);
+		return string;
+	}
+}
@@ -0,0 +1,51 @@
+package se.fnord.jamon.internal;
+
+import se.fnord.jamon.CharacterMatcher;
+
+final class StringSource extends Source {
+	private final String string;
+
+	StringSource(String string) {
+		this.string = string;
+	}
+
+	@Override
+	char charAt(int position) {
+		return string.charAt(position);
+	}
+
+	@Override
+	int available(int position, int count) {
+		return Math.min(count, string.length() - position);
+	}
+
+	@Override
+	int scan(int start, int end, CharacterMatcher matcher) {
+		final String string = this.string;
+		for (int i = start; i < end; i++)
+			if (!matcher.match(string.charAt(i)))
+				return i;
+		return end;
+	}
+
+	@Override
+	boolean regionMatches(int position, String token) {
+		return string.startsWith(token, position);
+	}
+
+	@Override
+	int length() {
+		return string.length();
+	}
+
+	@Override
+	CharSequence subSequence(int start, int end) {
+		// Strings can not change, so values are copied only when read
+		return new SourceSequence(this, start, end);
+	}
+
+	@Override
+	String substring(int start, int end) {
+		return string.substring(start, end);
+	}
+}
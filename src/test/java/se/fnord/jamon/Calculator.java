@@ -6,6 +6,7 @@ import static se.fnord.jamon.Parsers.delimitedSequence;
 import static se.fnord.jamon.Parsers.exact;
 import static se.fnord.jamon.Parsers.lalternative;
 import static se.fnord.jamon.Parsers.matches;
+import static se.fnord.jamon.Parsers.operators;
 import static se.fnord.jamon.Parsers.parse;
 import static se.fnord.jamon.Parsers.reference;
 import static se.fnord.jamon.Parsers.sequence;
@@ -50,6 +51,18 @@ public class Calculator {
 		}
 	}
 
+	public static class Binary extends Evaluator {
+		private final Reducer reducer;
+
+		public Binary(Reducer reducer) {
+			this.reducer = reducer;
+		}
+
+		public Long evaluate(Node n) {
+			return reducer.reduce(eval(n.firstChild()), eval(n.children().get(1)));
+		}
+	}
+
 	public static abstract class Reducer {
 		public abstract Long reduce(Long first, Long second);
 
@@ -153,6 +166,23 @@ public class Calculator {
 		return strip(expr);
 	}
 
+	public static Consumer createOperatorParser() {
+		final ParserReference exprRef = reference();
+		final Consumer atom = lalternative(
+			matches(digit()).attach(new Literal()),
+			sequence(skip("("), exprRef, skip(")")).attach(new Expr()));
+
+		final Consumer expr = operators(strip(atom),
+			Operator.prefix(strip(exact("-")), 3).attach(new Negate()),
+			Operator.infix(strip(exact("*")), 2).attach(new Binary(new Mul())),
+			Operator.infix(strip(exact("/")), 2).attach(new Binary(new Div())),
+			Operator.infix(strip(exact("+")), 1).attach(new Binary(new Add())),
+			Operator.infix(strip(exact("-")), 1).attach(new Binary(new Sub())));
+
+		exprRef.setTarget(expr);
+		return expr;
+	}
+
 	private static void assertEval(long value, Node n) {
 		assertEquals(Long.valueOf(value), eval(n));
 	}
@@ -204,4 +234,29 @@ public class Calculator {
 		assertEval(2, parse(p, "1--1"));
 		assertEval(1, parse(p, "1+1-1"));
 	}
+
+	@Test
+	public void testOperatorParser() throws ParseException, FatalParseException {
+		final Consumer p = createOperatorParser();
+		assertEval(0, parse(p, "0"));
+		assertEval(1, parse(p, "1"));
+		assertEval(0, parse(p, " 0 "));
+
+		assertEval(-2, parse(p, " -1 * 2 "));
+		assertEval(2, parse(p, "1*2"));
+		assertEval(4, parse(p, "2*2"));
+		assertEval(1, parse(p, "2/2"));
+		assertEval(2, parse(p, "3*2/3"));
+
+		assertEval(2, parse(p, "1+1"));
+		assertEval(0, parse(p, "(1+1)*0"));
+		assertEval(1, parse(p, "1+1*0"));
+		assertEval(13, parse(p, "2*2+3*3"));
+		assertEval(30, parse(p, "2*-(-2+-3)*3"));
+
+		assertEval(0, parse(p, "1-1"));
+		assertEval(2, parse(p, "1--1"));
+		assertEval(1, parse(p, "1+1-1"));
+		assertEval(-4, parse(p, "1-2-3"));
+	}
 }
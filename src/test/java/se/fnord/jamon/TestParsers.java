@@ -1,16 +1,54 @@
 package se.fnord.jamon;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static se.fnord.jamon.CharacterMatchers.and;
+import static se.fnord.jamon.CharacterMatchers.ascii;
+import static se.fnord.jamon.CharacterMatchers.digit;
 import static se.fnord.jamon.CharacterMatchers.letter;
+import static se.fnord.jamon.CharacterMatchers.not;
+import static se.fnord.jamon.CharacterMatchers.or;
 import static se.fnord.jamon.Parsers.alternative;
+import static se.fnord.jamon.Parsers.commit;
+import static se.fnord.jamon.Parsers.cut;
+import static se.fnord.jamon.Parsers.endOfInput;
 import static se.fnord.jamon.Parsers.exact;
+import static se.fnord.jamon.Parsers.exactIgnoreCase;
+import static se.fnord.jamon.Parsers.lalternative;
 import static se.fnord.jamon.Parsers.lift;
 import static se.fnord.jamon.Parsers.matches;
+import static se.fnord.jamon.Parsers.maxNesting;
+import static se.fnord.jamon.Parsers.memoize;
+import static se.fnord.jamon.Parsers.noMemo;
+import static se.fnord.jamon.Parsers.oneOf;
+import static se.fnord.jamon.Parsers.operators;
+import static se.fnord.jamon.Parsers.optional;
 import static se.fnord.jamon.Parsers.parse;
+import static se.fnord.jamon.Parsers.peek;
+import static se.fnord.jamon.Parsers.reference;
+import static se.fnord.jamon.Parsers.repeat;
+import static se.fnord.jamon.Parsers.require;
 import static se.fnord.jamon.Parsers.sequence;
+import static se.fnord.jamon.Parsers.skip;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
+import se.fnord.jamon.internal.Contexts;
+
 public final class TestParsers {
 	@Test
 	public void testParse() throws ParseException, FatalParseException {
@@ -18,6 +56,56 @@ public final class TestParsers {
 		System.err.println(n);
 	}
 
+	@Test
+	public void testCompiledMatcher() {
+		final CharacterMatcher[] matchers = {
+		    letter(), digit(16), not('"', '\\'), or(digit(), CharacterMatchers.match('_', '\uffff')), and(letter(), not(ascii(letter())))
+		};
+		for (final CharacterMatcher matcher : matchers) {
+			final CharacterMatcher compiled = CharacterMatchers.compile(matcher);
+			for (int ch = Character.MIN_VALUE; ch <= Character.MAX_VALUE; ch++)
+				assertEquals(matcher + " " + ch, matcher.match((char) ch), compiled.match((char) ch));
+			assertEquals(matcher.toString(), compiled.toString());
+		}
+	}
+
+	@Test
+	public void testLazyValue() throws ParseException, FatalParseException {
+		final Node n = parse(sequence(matches(letter()), matches(digit())), "abc123");
+		final Node letters = n.children().get(0);
+		assertFalse(letters.valueSequence() instanceof String);
+		assertEquals("bc", letters.valueSequence().subSequence(1, 3).toString());
+		assertEquals("abc", letters.value());
+		assertEquals(new Node(3, 6, "123", null), n.children().get(1));
+
+		// Values do not follow changes made to mutable input after the parse
+		final StringBuilder sb = new StringBuilder("abc");
+		final Node m = parse(matches(letter()), sb);
+		sb.setLength(0);
+		assertEquals("abc", m.value());
+	}
+
+	@Test
+	public void testRecognize() throws ParseException, FatalParseException {
+		final AttachmentFactory unused = new AttachmentFactory() {
+			@Override
+			public Object create(String value, List<Node> children) {
+				throw new AssertionError("Attachment created while skipping");
+			}
+		};
+		final Consumer recorder = new Consumer() {
+			@Override
+			public ParseContext consume(ParseContext input, Node parent) {
+				assertTrue(parent.discards());
+				return input;
+			}
+		};
+		final Consumer word = sequence(matches(letter()).attachmentFactory(unused), recorder).attachmentFactory(unused);
+		final Node n = parse(sequence(peek(word), skip(word), matches(digit())), "abc123");
+		assertEquals(1, n.children().size());
+		assertEquals("123", n.firstChild().value());
+	}
+
 	@Test
 	public void testLift() throws ParseException, FatalParseException {
 		final Node expected =
@@ -29,4 +117,713 @@ public final class TestParsers {
 
 		assertEquals(expected, n);
 	}
+
+	@Test
+	public void testMemoizationModes() throws ParseException, FatalParseException {
+		final Consumer p = Calculator.createParser();
+		final String input = " 1 + 2 * (3 - -4) / 5 - 6";
+		final Node expected = parse(p, input, Memoization.ALL);
+
+		assertEquals(expected, parse(p, input, Memoization.AUTO));
+		assertEquals(expected, parse(p, input, Memoization.NONE));
+	}
+
+	@Test
+	public void testAutoMemoization() {
+		final Parser shared = matches(letter());
+		final Parser unique = matches(digit());
+		final Parser bang = exact("!");
+		final Consumer p = alternative(sequence(shared, bang), sequence(shared, exact("?")), unique);
+
+		final Predicate<Consumer> auto = MemoizationPolicy.create(p, Memoization.AUTO);
+		assertTrue(auto.test(shared));
+		assertFalse(auto.test(unique));
+		assertFalse(auto.test(bang));
+		assertFalse(auto.test(p));
+
+		final Consumer hinted = alternative(sequence(noMemo(shared), bang), sequence(shared, exact("?")), memoize(unique));
+		final Predicate<Consumer> none = MemoizationPolicy.create(hinted, Memoization.NONE);
+		assertFalse(none.test(shared));
+		assertFalse(none.test(unique));
+		assertFalse(MemoizationPolicy.create(hinted, Memoization.ALL).test(shared));
+		assertFalse(MemoizationPolicy.create(hinted, Memoization.AUTO).test(shared));
+
+		// Policies are kept on the root until the grammar changes
+		final ParserReference ref = reference();
+		ref.setTarget(p);
+		final Predicate<Consumer> cached = MemoizationPolicy.cached(ref, Memoization.AUTO);
+		assertTrue(cached == MemoizationPolicy.cached(ref, Memoization.AUTO));
+		assertFalse(cached == MemoizationPolicy.cached(ref, Memoization.ALL));
+		final Predicate<Consumer> all = MemoizationPolicy.cached(ref, Memoization.ALL);
+		reference().setTarget(p);
+		assertTrue(all == MemoizationPolicy.cached(ref, Memoization.ALL));
+		ref.setTarget(hinted);
+		assertFalse(MemoizationPolicy.cached(ref, Memoization.AUTO).test(shared));
+	}
+
+	private static String jsonList(int count) {
+		final StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < count; i++)
+			sb.append("{\"a\": [1, \"b\", true]}, ");
+		return sb.append("null]").toString();
+	}
+
+	private static Node consume(Consumer p, String input, Contexts contexts) throws ParseException, FatalParseException {
+		final Node root = new Node(null);
+		assertEquals(0, p.consume(contexts.parseContext(input), root).length());
+		return root.firstChild();
+	}
+
+	@Test
+	public void testMemoWindow() throws ParseException, FatalParseException {
+		final Consumer p = JSON.createParser();
+		final String input = jsonList(1000);
+		final Contexts unbounded = new Contexts();
+		final Contexts windowed = new Contexts(MemoizationPolicy.create(p, Memoization.ALL), 64);
+
+		assertEquals(consume(p, input, unbounded), consume(p, input, windowed));
+		assertTrue(windowed.parseCacheSize() * 10 < unbounded.parseCacheSize());
+	}
+
+	/**
+	 * @return count JSON lists of one record each, one after another
+	 */
+	private static String jsonRecords(int count) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			sb.append(jsonList(1));
+		return sb.toString();
+	}
+
+	@Test
+	public void testCommit() throws ParseException, FatalParseException {
+		final Consumer record = JSON.createParser();
+		final Consumer uncommitted = repeat(sequence(record));
+		final String input = jsonRecords(1000);
+		// A cut with no backtracking point left commits like commit()
+		for (final Consumer commit : new Consumer[] { commit(), cut() }) {
+			final Consumer p = repeat(sequence(record, commit));
+			final Contexts unbounded = new Contexts();
+			final Contexts committed = new Contexts(MemoizationPolicy.create(p, Memoization.ALL));
+
+			final Node n = consume(p, input, committed);
+			assertEquals(1000, n.children().size());
+			assertEquals(n, consume(uncommitted, input, unbounded));
+			assertTrue(committed.parseCacheSize() * 10 < unbounded.parseCacheSize());
+		}
+	}
+
+	private static void assertNoParse(Consumer p, String input) throws FatalParseException {
+		try {
+			parse(p, input);
+			fail("Parsed " + input);
+		}
+		catch (ParseException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testCut() throws ParseException, FatalParseException {
+		final Consumer plain = alternative(sequence(exact("a"), exact("b")), sequence(exact("a"), exact("c")));
+		final Consumer p = alternative(sequence(exact("a"), cut(), exact("b")), sequence(exact("a"), exact("c")));
+		parse(plain, "ac");
+		parse(p, "ab");
+		assertNoParse(p, "ac");
+
+		// Only the innermost alternative is committed
+		final Consumer inner = alternative(sequence(exact("x"), cut(), exact("y")), exact("z"));
+		final Consumer outer = alternative(sequence(inner, exact("!")), sequence(exact("x"), exact("q")));
+		parse(outer, "xy!");
+		parse(outer, "xq");
+
+		final Consumer plainPairs = sequence(repeat(sequence(exact("a"), exact("b"))), optional(exact("a")));
+		final Consumer pairs = sequence(repeat(sequence(exact("a"), cut(), exact("b"))), optional(exact("a")));
+		parse(plainPairs, "ababa");
+		parse(pairs, "abab");
+		assertNoParse(pairs, "ababa");
+	}
+
+	@Test
+	public void testDispatch() throws ParseException, FatalParseException {
+		final Consumer p = alternative(exact("a"), sequence(optional(exact("b")), exact("c")), sequence(peek(matches(digit())), matches(0, letter())), endOfInput());
+		assertEquals(1, parse(p, "a").end());
+		assertEquals(2, parse(p, "bc").end());
+		assertEquals(1, parse(p, "c").end());
+		assertEquals(0, parse(p, "").end());
+		assertNoParse(p, "1");
+		assertNoParse(p, "\u00e4");
+		assertEquals(1, parse(alternative(exact("a"), matches(letter())), "\u00e4").end());
+
+		// Retargeting a reference of a branch rebuilds the table
+		final ParserReference r = reference();
+		r.setTarget(exact("a"));
+		final Consumer retargeted = alternative(r, exact("z"));
+		parse(retargeted, "a");
+		r.setTarget(exact("b"));
+		parse(retargeted, "b");
+
+		try {
+			parse(alternative(exact("a"), require(exact("b"))), "c");
+			fail("Required input skipped");
+		}
+		catch (ParseException e) {
+			fail("Required input skipped");
+		}
+		catch (FatalParseException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testConsumerFailure() throws ParseException, FatalParseException {
+		final Consumer failing = new Consumer() {
+			@Override
+			public ParseContext consume(ParseContext input, Node parent) throws ParseException {
+				throw new ParseException("Never matches");
+			}
+		};
+		assertEquals(1, parse(alternative(failing, exact("a")), "a").end());
+		assertEquals(0, parse(sequence(optional(failing), repeat(exact("a"))), "").end());
+		assertNoParse(sequence(exact("a"), failing), "a");
+	}
+
+	@Test
+	public void testFarthestFailure() throws FatalParseException, IOException {
+		final Consumer json = JSON.createParser();
+		final String input = "[1,\n {\"a\": tru}]";
+		for (final Consumer p : new Consumer[] { json, Parsers.compile(json), Parsers.specialize(json) }) {
+			try {
+				parse(p, input);
+				fail("Parsed " + input);
+			}
+			catch (ParseException e) {
+				assertEquals(e.getMessage(), 11, e.position());
+				assertEquals(2, e.line());
+				assertEquals(8, e.column());
+				assertTrue(e.expected().toString(), e.expected().containsAll(Arrays.asList("\"true\"", "\"false\"", "\"[\"")));
+			}
+		}
+
+		try {
+			parse(sequence(exact("a"), optional(exact("b"))), new StringReader("a\nc"));
+			fail("Parsed remaining input");
+		}
+		catch (ParseException e) {
+			assertEquals(1, e.position());
+			assertEquals(1, e.line());
+			assertEquals(2, e.column());
+			assertTrue(e.expected().toString(), e.expected().containsAll(Arrays.asList("\"b\"", "end of input")));
+		}
+
+		final Consumer custom = new Consumer() {
+			@Override
+			public ParseContext consume(ParseContext input, Node parent) throws ParseException {
+				throw new ParseException("boom");
+			}
+		};
+		final Consumer withCustom = sequence(exact("a"), custom);
+		for (final Consumer p : new Consumer[] { withCustom, Parsers.compile(withCustom), Parsers.specialize(withCustom) }) {
+			try {
+				parse(p, "ab");
+				fail("Parsed ab");
+			}
+			catch (ParseException e) {
+				assertEquals(1, e.position());
+				assertEquals(Arrays.asList("boom"), e.expected());
+			}
+		}
+
+		// A custom consumer delegating to a built-in reports what it expected
+		final Consumer b = exact("b");
+		final Consumer delegating = new Consumer() {
+			@Override
+			public ParseContext consume(ParseContext input, Node parent) throws ParseException, FatalParseException {
+				return b.consume(input, parent);
+			}
+		};
+		final Consumer withDelegating = sequence(exact("a"), delegating);
+		for (final Consumer p : new Consumer[] { withDelegating, Parsers.compile(withDelegating), Parsers.specialize(withDelegating) }) {
+			try {
+				parse(p, "ax");
+				fail("Parsed ax");
+			}
+			catch (ParseException e) {
+				assertEquals(1, e.position());
+				assertEquals(Arrays.asList("\"b\""), e.expected());
+			}
+		}
+	}
+
+	@Test
+	public void testCompile() throws ParseException, FatalParseException {
+		final Consumer json = JSON.createParser();
+		final String input = jsonList(100);
+		assertEquals(parse(json, input), parse(Parsers.compile(json), input));
+
+		final Consumer p = sequence(peek(exact("a")), skip(matches(letter())), alternative(sequence(exact("1"), cut(), exact("2")), exact("13")));
+		final Consumer compiled = Parsers.compile(p);
+		assertEquals(parse(p, "abc12"), parse(compiled, "abc12"));
+		assertNoParse(compiled, "abc13");
+		assertNoParse(Parsers.compile(json), "[1, ");
+
+		final Consumer required = sequence(exact("a"), require(sequence(exact("b"), exact("c"))));
+		for (final Consumer r : new Consumer[] { required, Parsers.compile(required), Parsers.specialize(required) }) {
+			try {
+				parse(r, "abx");
+				fail("Parsed abx");
+			}
+			catch (ParseException e) {
+				fail(e.getMessage());
+			}
+			catch (FatalParseException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Required input missing at 1: "));
+				final ParseException cause = (ParseException) e.getCause();
+				assertEquals(2, cause.position());
+				assertEquals(Arrays.asList("\"c\""), cause.expected());
+			}
+		}
+	}
+
+	@Test
+	public void testSpecialize() throws ParseException, FatalParseException {
+		final Consumer json = Parsers.specialize(JSON.createParser());
+		for (int i = 0; i < 200; i++)
+			assertEquals(parse(JSON.createParser(), jsonList(i)), parse(json, jsonList(i)));
+		assertNoParse(json, "[1, ");
+
+		final Consumer p = sequence(peek(exact("a")), skip(matches(letter())), alternative(sequence(exact("1"), cut(), exact("2")), exact("13")));
+		assertEquals(parse(p, "abc12"), parse(Parsers.specialize(p), "abc12"));
+		assertNoParse(Parsers.specialize(p), "abc13");
+	}
+
+	@Test
+	public void testReaderParse() throws ParseException, FatalParseException, IOException {
+		final Consumer record = JSON.createParser();
+		final Consumer p = repeat(sequence(record, cut()));
+		final String input = jsonRecords(1000);
+
+		// Short reads make chunks fill up over several loads
+		final Reader reader = new FilterReader(new StringReader(input)) {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				return super.read(cbuf, off, Math.min(len, 7));
+			}
+		};
+		assertEquals(parse(p, input), parse(p, reader));
+		assertEquals(parse(record, jsonList(1000)), parse(record, new StringReader(jsonList(1000))));
+	}
+
+	private static long subtract(Node n) {
+		if (n.children().isEmpty())
+			return Long.parseLong(n.value());
+		return subtract(n.firstChild()) - subtract(n.children().get(1));
+	}
+
+	@Test
+	public void testLeftRecursion() throws ParseException, FatalParseException {
+		final ParserReference expr = reference();
+		final Consumer number = matches(1, -1, digit());
+		expr.setTarget(lalternative(sequence(expr, skip(exact("-")), number), number));
+		final Node n = parse(expr, "10-2-3");
+		assertEquals(5, subtract(n));
+		assertEquals("10", n.firstChild().firstChild().value());
+		assertEquals(n, parse(Parsers.compile(expr), "10-2-3"));
+		assertEquals(n, parse(Parsers.specialize(expr), "10-2-3"));
+		assertNoParse(expr, "10-");
+
+		// Indirect, through another reference
+		final ParserReference a = reference();
+		final ParserReference b = reference();
+		a.setTarget(lalternative(sequence(b, skip(exact("+")), number), number));
+		b.setTarget(a);
+		assertEquals(parse(expr, "1-2-3").toString(), parse(a, "1+2+3").toString().replace('+', '-'));
+
+		// Made left recursive by retargeting another reference after use
+		final ParserReference c = reference();
+		final ParserReference d = reference();
+		c.setTarget(lalternative(sequence(d, skip(exact("+")), number), number));
+		d.setTarget(number);
+		parse(c, "1+2");
+		d.setTarget(c);
+		assertEquals(parse(a, "1+2+3"), parse(c, "1+2+3"));
+
+		// Linear in the length of the input
+		final StringBuilder sb = new StringBuilder("0");
+		for (int i = 0; i < 20000; i++)
+			sb.append("-1");
+		Node m = parse(expr, sb.toString());
+		int depth = 0;
+		for (; !m.children().isEmpty(); m = m.firstChild())
+			depth++;
+		assertEquals(20000, depth);
+	}
+
+	private static String render(Node n) {
+		if (n.attachment() == null)
+			return n.value();
+		final StringBuilder sb = new StringBuilder("(").append(n.attachment());
+		for (final Node c : n.children())
+			sb.append(' ').append(render(c));
+		return sb.append(')').toString();
+	}
+
+	@Test
+	public void testOperators() throws ParseException, FatalParseException {
+		final Consumer p = operators(matches(letter()),
+		    Operator.prefix(exact("-"), 2).attach("neg"),
+		    Operator.infix(exact("+"), 1).attach("add"),
+		    Operator.infixRight(exact("^"), 3).attach("pow"),
+		    Operator.postfix(exact("!"), 4).attach("fact"));
+		assertEquals("a", render(parse(p, "a")));
+		assertEquals("(add (add a b) c)", render(parse(p, "a+b+c")));
+		assertEquals("(pow a (pow b c))", render(parse(p, "a^b^c")));
+		assertEquals("(add (neg (pow a b)) (fact c))", render(parse(p, "-a^b+c!")));
+		assertEquals("(neg (neg (fact a)))", render(parse(p, "--a!")));
+		assertEquals(parse(p, "-a^b+c!"), parse(Parsers.compile(p), "-a^b+c!"));
+
+		// The operator is not consumed unless its right hand side matches
+		assertEquals("(add a b)", render(parse(sequence(p, exact("+")), "a+b+").firstChild()));
+		assertEquals("+", parse(sequence(skip(p), exact("+")), "a+b+").firstChild().value());
+		assertNoParse(skip(p), "a+");
+
+		final Consumer highest = operators(matches(letter()), Operator.infix(exact("+"), Integer.MAX_VALUE).attach("add"));
+		assertEquals("(add (add a b) c)", render(parse(highest, "a+b+c")));
+		final Node attached = parse(operators(matches(letter()), Operator.infix(exact("+"), 1).attach("add")).attach("expr"), "a+b");
+		assertEquals("(expr (add a b))", render(attached));
+	}
+
+	@Test
+	public void testDeepNesting() throws ParseException, FatalParseException {
+		final String input = nestedList(100000);
+		final Consumer json = JSON.createParser();
+
+		assertEquals(input.length(), parse(Parsers.compile(json), input).end());
+		try {
+			parse(Parsers.compile(json, 1000), input);
+			fail();
+		}
+		catch (FatalParseException e) {
+			// Expected
+		}
+		for (final Consumer p : new Consumer[] { json, Parsers.specialize(json) }) {
+			try {
+				parse(p, input);
+				fail();
+			}
+			catch (FatalParseException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Input nested deeper than 1000 consumers"));
+			}
+		}
+
+		final String hundred = nestedList(100);
+		try {
+			parse(json, hundred);
+			fail();
+		}
+		catch (FatalParseException e) {
+			// Expected
+		}
+		assertEquals(hundred.length(), parse(maxNesting(json, 2000), hundred).end());
+	}
+
+	private static String nestedList(int depth) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+			sb.append('[');
+		for (int i = 0; i < depth; i++)
+			sb.append(']');
+		return sb.toString();
+	}
+
+	@Test
+	public void testGrammar() throws Exception {
+		final Grammar grammar = Parsers.grammar(JSON.createParser());
+		final String input = jsonList(10);
+		final Node expected = parse(JSON.createParser(), input);
+
+		String message = null;
+		for (int i = 0; i < 3; i++) {
+			assertEquals(expected, grammar.parse(input));
+			assertEquals(expected, grammar.parse(new StringReader(input)));
+			// Failures leave nothing behind for the next parse
+			try {
+				grammar.parse("[1, ");
+				fail();
+			}
+			catch (ParseException e) {
+				if (message != null)
+					assertEquals(message, e.getMessage());
+				message = e.getMessage();
+			}
+		}
+
+		final Thread[] threads = new Thread[4];
+		final Throwable[] errors = new Throwable[threads.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int n = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++)
+							assertEquals(expected, grammar.parse(input));
+					}
+					catch (Throwable e) {
+						errors[n] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+			if (errors[t] != null)
+				throw new AssertionError(errors[t]);
+		}
+	}
+
+	@Test
+	public void testRecords() throws Exception {
+		final Consumer json = JSON.createParser();
+		final StringBuilder input = new StringBuilder("\n");
+		final List<String> records = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			records.add(jsonList(i % 7));
+			input.append(records.get(i)).append(i % 3 == 0 ? "\r\n" : "\n\n");
+		}
+		final CharacterMatcher newline = CharacterMatchers.match('\r', '\n');
+
+		final List<Node> nodes = Parsers.parseRecords(json, input, newline);
+		assertEquals(records.size(), nodes.size());
+		for (int i = 0; i < records.size(); i++) {
+			final Node node = nodes.get(i);
+			assertEquals(records.get(i), input.substring(node.start(), node.end()));
+			assertEquals(parse(json, records.get(i)).firstChild().value(), node.firstChild().value());
+		}
+
+		final int failed = input.length();
+		input.append("[1, ]\n[2, ]\n");
+		try {
+			Parsers.parseRecords(json, input, newline);
+			fail();
+		}
+		catch (ParseException e) {
+			assertEquals(failed + 4, e.position());
+		}
+
+		// Records after a failed one are not parsed
+		final int[] parsed = new int[1];
+		final Consumer counted = sequence(exact("x"), new Consumer() {
+			@Override
+			public ParseContext consume(ParseContext input, Node parent) throws ParseException {
+				synchronized (parsed) {
+					parsed[0]++;
+				}
+				return input;
+			}
+		});
+		try {
+			Parsers.grammar(counted).parseRecords("y\nx\nx\nx", newline, new ForkJoinPool(1));
+			fail();
+		}
+		catch (ParseException e) {
+			assertEquals(0, e.position());
+			assertEquals(0, parsed[0]);
+		}
+	}
+
+	@Test
+	public void testExactIgnoreCase() throws ParseException, FatalParseException {
+		final Consumer p = alternative(exact("x"), sequence(exactIgnoreCase("Select"), exactIgnoreCase("\ud801\udc00")));
+		final Node n = parse(p, "sELECT\ud801\udc28");
+		assertEquals("sELECT", n.firstChild().firstChild().value());
+		assertEquals("\ud801\udc28", n.firstChild().children().get(1).value());
+		assertEquals(n, parse(Parsers.compile(p), "sELECT\ud801\udc28"));
+		assertEquals(n, parse(Parsers.specialize(p), "sELECT\ud801\udc28"));
+
+		assertNoParse(p, "selec");
+		assertNoParse(p, "selects");
+		assertNoParse(p, "select\ud801\udc29");
+	}
+
+	@Test
+	public void testOneOf() throws ParseException, FatalParseException {
+		final String[] keywords = { "in", "int", "i", "integer", "if", "int" };
+		final Consumer[] exacts = new Consumer[keywords.length];
+		for (int i = 0; i < keywords.length; i++)
+			exacts[i] = exact(keywords[i]);
+		final Consumer p = sequence(oneOf(keywords).attach("k"), matches(0, -1, letter()));
+		final Consumer q = sequence(lalternative(exacts).attach("k"), matches(0, -1, letter()));
+
+		// The first declared match wins, as for an alternative
+		for (final String input : new String[] { "integer", "int", "if", "ix", "in" })
+			assertEquals(parse(q, input), parse(p, input));
+		assertEquals(2, parse(p, "integer").firstChild().end());
+		assertEquals("k", parse(p, "integer").firstChild().attachment());
+
+		assertNoParse(p, "x");
+		try {
+			parse(oneOf("b", "a"), "c");
+			fail();
+		}
+		catch (ParseException e) {
+			assertEquals(2, e.expected().size());
+			assertTrue(e.expected().toString(), e.expected().containsAll(Arrays.asList("\"a\"", "\"b\"")));
+		}
+	}
+
+	@Test
+	public void testLongRuns() throws ParseException, FatalParseException, IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			sb.append((char) ('a' + i % 26));
+		final String input = sb.append("1").toString();
+
+		// Runs span several scan windows and reader chunks
+		final Consumer p = sequence(matches(0, -1, letter()), matches(1, 1, digit()), endOfInput());
+		assertEquals(parse(p, input), parse(p, new StringReader(input)));
+		assertEquals(parse(p, input), parse(p, CharBuffer.wrap(input.toCharArray())));
+		assertEquals(parse(p, input), parse(p, ByteBuffer.wrap(input.getBytes(StandardCharsets.US_ASCII)), StandardCharsets.UTF_8));
+		assertEquals(20000, parse(p, input).children().get(0).end());
+
+		final Consumer q = sequence(matches(5000, 5000, letter()), matches(0, -1, letter()), matches(digit()));
+		assertEquals(5000, parse(q, new StringReader(input)).children().get(0).end());
+	}
+
+	@Test
+	public void testCharSequenceParse() throws ParseException, FatalParseException {
+		final Consumer p = JSON.createParser();
+		final String input = jsonList(10);
+		final Node expected = parse(p, input);
+
+		assertEquals(expected, parse(p, new StringBuilder(input)));
+		assertEquals(expected, parse(p, CharBuffer.wrap(" " + input + " ", 1, input.length() + 1)));
+		final CharBuffer heap = CharBuffer.allocate(input.length() + 2);
+		heap.put("x").put(input).flip().position(1);
+		assertEquals(expected, parse(p, heap.slice()));
+		assertEquals(1, heap.position());
+		assertEquals(expected, parse(p, heap.asReadOnlyBuffer()));
+	}
+
+	/**
+	 * A context implemented outside the library, without memoization.
+	 */
+	private static final class StringContext implements ParseContext {
+		private final String input;
+		private final int start;
+		private final int end;
+
+		StringContext(String input, int start, int end) {
+			this.input = input;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int start() {
+			return start;
+		}
+
+		@Override
+		public int end() {
+			return end;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return input.charAt(start + index);
+		}
+
+		@Override
+		public ParseContext splice(int splicePoint) {
+			return new StringContext(input, splicePoint, end);
+		}
+
+		@Override
+		public ParseContext splice(int splicePoint, int end) {
+			return new StringContext(input, splicePoint, end);
+		}
+
+		@Override
+		public Node consumerMatched(Consumer group) {
+			return null;
+		}
+
+		@Override
+		public Node consumerMatches(Consumer group, Node node) {
+			return node;
+		}
+
+		@Override
+		public void consumerMismatches(Consumer group) {
+		}
+
+		@Override
+		public Node node(int index, Object attachment) {
+			return new Node(start, start + index, input.substring(start, start + index), attachment);
+		}
+
+		@Override
+		public Node node(int index, String value, Object attachment) {
+			return new Node(start, start + index, value, attachment);
+		}
+	}
+
+	@Test
+	public void testOtherContext() throws ParseException, FatalParseException {
+		final Consumer p = sequence(matches(letter()), optional(exact("!")));
+		final Node root = new Node(null);
+		final ParseContext rest = p.consume(new StringContext("12ab!3", 2, 6), root);
+		assertEquals(5, rest.start());
+		assertEquals(new Node(2, 4, "ab", null), root.firstChild().firstChild());
+		assertEquals(parse(p, "ab!").children().size(), root.firstChild().children().size());
+	}
+
+	@Test
+	public void testByteParse() throws ParseException, FatalParseException {
+		final Consumer p = JSON.createParser();
+		final String input = jsonList(10);
+		final byte[] bytes = input.getBytes(StandardCharsets.US_ASCII);
+		assertEquals(parse(p, input), parse(p, ByteBuffer.wrap(bytes), StandardCharsets.UTF_8));
+		final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+		assertEquals(parse(p, input), parse(p, direct, StandardCharsets.UTF_8));
+		final ByteBuffer offset = ByteBuffer.allocateDirect(bytes.length + 1);
+		offset.put((byte) ' ').put(bytes).flip().position(1);
+		assertEquals(parse(p, input).firstChild().value(), parse(p, offset, StandardCharsets.UTF_8).firstChild().value());
+
+		final Consumer quoted = sequence(exact("\""), matches(not('"')), exact("\""));
+		final Node n = parse(quoted, ByteBuffer.wrap("\"h\u00e4llo\"".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+		assertEquals(8, n.end());
+		assertEquals("h\u00e4llo", n.children().get(1).value());
+		// The first byte of \u00e4 in UTF-8 is 0xc3, which read as a character is the letter \u00c3
+		try {
+			parse(matches(ascii(letter())), ByteBuffer.wrap("\u00e4".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+			fail("Parsed a non-ASCII letter");
+		}
+		catch (ParseException e) {
+			assertEquals(0, e.position());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testReaderFailure() throws ParseException, FatalParseException, IOException {
+		final Reader reader = new Reader() {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				throw new IOException("Read failed");
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		parse(JSON.createParser(), reader);
+	}
 }